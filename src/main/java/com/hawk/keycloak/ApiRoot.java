@@ -2,13 +2,20 @@ package com.hawk.keycloak;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
 import com.hawk.keycloak.profiles.ProfileMode;
+import com.hawk.keycloak.resources.model.BulkResourcePermissionsRequest;
+import com.hawk.keycloak.resources.model.ResourceDecisionsRequest;
+import com.hawk.keycloak.resources.model.ResourcePermissionAssignmentResult;
 import com.hawk.keycloak.resources.model.UserResourcePermission;
 import com.hawk.keycloak.resources.model.UserResourcePermissionsRequest;
+import com.hawk.keycloak.users.model.UserChanges;
+import com.hawk.keycloak.util.model.CacheStatistics;
 import com.hawk.keycloak.util.model.ConnectionInfo;
+import com.hawk.keycloak.util.streaming.StreamFormat;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
 import org.eclipse.microprofile.openapi.annotations.media.Content;
 import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
@@ -24,6 +31,7 @@ import org.keycloak.services.resources.admin.AdminAuth;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
@@ -37,16 +45,20 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
 
     @GET
     @Path("users")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, "application/x-ndjson"})
     @NoCache
     public Response getUsers(
             @Parameter(description = "A String contained in username, first or last name, or email. Default search behavior is prefix-based (e.g., foo or foo*). Use *foo* for infix search and \"foo\" for exact search.") @QueryParam("search") String search,
             @Parameter(description = "A query to search for custom attributes, in the format 'key1:value2 key2:value2'") @QueryParam("attributes") String attributes,
             @Parameter(description = "List of comma separated user ids, in the format 'id1,id2'") @QueryParam("ids") String ids,
             @Parameter(description = "If true, only users with an active session (in any client of the realm) will be returned") @QueryParam("onlineOnly") Boolean onlineOnly,
+            @Parameter(description = "List of comma separated role ids, in the format 'id1,id2'. Only users holding all of these roles (directly, through composite roles or groups) will be returned") @QueryParam("roles") String roles,
+            @Parameter(description = "List of comma separated group ids, in the format 'id1,id2'. Only direct members of all of these groups will be returned") @QueryParam("groups") String groups,
             @Parameter(description = "Return only user ids") @QueryParam("idsOnly") Boolean idsOnly,
             @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
-            @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults
+            @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults,
+            @Parameter(description = "Enables pagination by cursor, if set. Pass an empty value for the first page, then the value of the 'X-Hawk-Next-Cursor' header of the previous page") @QueryParam("cursor") String cursor,
+            @Parameter(description = "List of comma separated claims to return, in the format 'sub,preferred_username,hawk.groups'. Returns all claims if omitted") @QueryParam("fields") String fields
     ) {
         return requestHandlerFactory
                 .usersRequestHandler(authenticate())
@@ -55,12 +67,29 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
                         attributes,
                         commaListToCollection(ids),
                         onlineOnly,
+                        commaListToCollection(roles),
+                        commaListToCollection(groups),
                         idsOnly,
                         firstResult,
-                        maxResults
+                        maxResults,
+                        cursor,
+                        commaListToCollection(fields),
+                        StreamFormat.fromHeaders(session.getContext().getRequestHeaders())
                 );
     }
 
+    @GET
+    @Path("users/changes")
+    @Produces(MediaType.APPLICATION_JSON)
+    @NoCache
+    public UserChanges getUserChanges(
+            @Parameter(description = "The cache-buster version the client is in sync with. Returns the ids of all users changed after it, or requires a full resync if the changes are not known anymore") @QueryParam("since") Long since
+    ) {
+        return requestHandlerFactory
+                .usersRequestHandler(authenticate())
+                .getUserChanges(since);
+    }
+
     @GET
     @Path("users/count")
     @Produces(MediaType.TEXT_PLAIN)
@@ -68,20 +97,24 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
     public Response getUsersCount(
             @Parameter(description = "A String contained in username, first or last name, or email. Default search behavior is prefix-based (e.g., foo or foo*). Use *foo* for infix search and \"foo\" for exact search.") @QueryParam("search") String search,
             @Parameter(description = "A query to search for custom attributes, in the format 'key1:value2 key2:value2'") @QueryParam("attributes") String attributes,
-            @Parameter(description = "If true, only users with an active session (in any client of the realm) will be counted") @QueryParam("onlineOnly") Boolean onlineOnly
+            @Parameter(description = "If true, only users with an active session (in any client of the realm) will be counted") @QueryParam("onlineOnly") Boolean onlineOnly,
+            @Parameter(description = "List of comma separated role ids, in the format 'id1,id2'. Only users holding all of these roles (directly, through composite roles or groups) will be counted") @QueryParam("roles") String roles,
+            @Parameter(description = "List of comma separated group ids, in the format 'id1,id2'. Only direct members of all of these groups will be counted") @QueryParam("groups") String groups
     ) {
         return requestHandlerFactory
                 .usersRequestHandler(authenticate())
                 .getUserCount(
                         search,
                         attributes,
-                        onlineOnly
+                        onlineOnly,
+                        commaListToCollection(roles),
+                        commaListToCollection(groups)
                 );
     }
 
     @GET
     @Path("resources")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, "application/x-ndjson"})
     public Response getResources(
             @Parameter(description = "List of comma separated resource ids, in the format 'id1,id2'") @QueryParam("ids") String ids,
             @Parameter(description = "The uuid of a user will return only resources shared with that user") @QueryParam("sharedWith") String sharedWith,
@@ -93,7 +126,10 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
             @Parameter(description = "If set only resources that match the name-filter exactly will be returned") @QueryParam("exactName") Boolean exactName,
             @Parameter(description = "Allows for filtering for types of resources") @QueryParam("type") String type,
             @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
-            @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults
+            @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults,
+            @Parameter(description = "Enables pagination by cursor, if set. Pass an empty value for the first page, then the value of the 'X-Hawk-Next-Cursor' header of the previous page") @QueryParam("cursor") String cursor,
+            @Parameter(description = "Either 'full' (default) or 'compact', the latter only returns the id, name, type, owner id and scope names") @QueryParam("view") String view,
+            @Parameter(description = "List of comma separated fields to return, in the format '_id,name,scopeNames'. Overrides the view") @QueryParam("fields") String fields
     ) {
         return requestHandlerFactory
                 .resourceRequestHandler(authenticate())
@@ -108,10 +144,53 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
                         idsOnly,
                         sharedOnly,
                         firstResult,
-                        maxResults
+                        maxResults,
+                        cursor,
+                        view,
+                        commaListToCollection(fields),
+                        StreamFormat.fromHeaders(session.getContext().getRequestHeaders())
+                );
+    }
+
+    @GET
+    @Path("resources/count")
+    @Produces(MediaType.TEXT_PLAIN)
+    @NoCache
+    public Response getResourcesCount(
+            @Parameter(description = "List of comma separated resource ids, in the format 'id1,id2'") @QueryParam("ids") String ids,
+            @Parameter(description = "The uuid of a user will count only resources shared with that user") @QueryParam("sharedWith") String sharedWith,
+            @Parameter(description = "Allows for filtering the resources by their name, by default a partial search is done, set 'exactName' for exact matching") @QueryParam("name") String name,
+            @Parameter(description = "Allows filtering the resources by the uri") @QueryParam("uri") String uri,
+            @Parameter(description = "The uuid of a user will only count resources owned by the user") @QueryParam("owner") String owner,
+            @Parameter(description = "If enabled AND the owner is set, only resources shared by the owner will be counted") @QueryParam("sharedOnly") Boolean sharedOnly,
+            @Parameter(description = "If set only resources that match the name-filter exactly will be counted") @QueryParam("exactName") Boolean exactName,
+            @Parameter(description = "Allows for filtering for types of resources") @QueryParam("type") String type
+    ) {
+        return requestHandlerFactory
+                .resourceRequestHandler(authenticate())
+                .handleCountResourcesRequest(
+                        commaListToCollection(ids),
+                        sharedWith,
+                        name,
+                        uri,
+                        owner,
+                        type,
+                        exactName,
+                        sharedOnly
                 );
     }
 
+    @GET
+    @Path("resources/users")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getUsersOfResources(
+            @Parameter(description = "List of comma separated resource ids, in the format 'id1,id2'") @QueryParam("ids") String ids
+    ) {
+        return requestHandlerFactory
+                .resourceRequestHandler(authenticate())
+                .handleUsersOfResourcesRequest(commaListToCollection(ids));
+    }
+
     @GET
     @Path("resources/{resource}/users")
     @Produces(MediaType.APPLICATION_JSON)
@@ -141,10 +220,39 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
                 );
     }
 
+    @PUT
+    @Path("resources/permissions")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<ResourcePermissionAssignmentResult> setResourcePermissionsInBulk(
+            BulkResourcePermissionsRequest request
+    ) {
+        return requestHandlerFactory
+                .resourceRequestHandler(authenticate())
+                .handleSetPermissionsInBulkRequest(
+                        request != null ? request.getAssignments() : null
+                );
+    }
+
+    @POST
+    @Path("resources/decisions")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Boolean> getResourceDecisions(
+            ResourceDecisionsRequest request
+    ) {
+        return requestHandlerFactory
+                .resourceRequestHandler(authenticate())
+                .handleDecisionsRequest(
+                        request != null ? request.getQueries() : null
+                );
+    }
+
     @GET
     @Path("roles")
     @Produces(MediaType.APPLICATION_JSON)
-    public Stream<RoleRepresentation> getRoles(
+    @APIResponse(responseCode = "200", content = @Content(schema = @Schema(implementation = RoleRepresentation.class, type = SchemaType.ARRAY)))
+    public Response getRoles(
             @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
             @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults
     ) {
@@ -161,6 +269,7 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
     @Produces(MediaType.APPLICATION_JSON)
     public Stream<String> getRoleMembers(
             @Parameter(description = "The id of the role to find the members of") @PathParam("role") String roleId,
+            @Parameter(description = "If true, also the users that hold the role through composite roles or (parent) groups are returned, ordered by id") @QueryParam("effective") Boolean effective,
             @Parameter(description = "Pagination offset") @QueryParam("first") Integer firstResult,
             @Parameter(description = "Maximum results size (defaults to 100)") @QueryParam("max") Integer maxResults
     ) {
@@ -168,6 +277,7 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
                 .rolesRequestHandler(authenticate())
                 .handleRoleMembersRequest(
                         roleId,
+                        effective,
                         firstResult,
                         maxResults
                 );
@@ -177,7 +287,8 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
     @Path("profile/structure")
     @Produces(MediaType.APPLICATION_JSON)
     @Operation(description = "Get the configuration for the user profile")
-    public UPConfig getProfileStructure() {
+    @APIResponse(responseCode = "200", content = @Content(schema = @Schema(implementation = UPConfig.class)))
+    public Response getProfileStructure() {
         return requestHandlerFactory.profileStructureRequestHandler(authenticate()).handleGetStructure();
     }
 
@@ -247,6 +358,14 @@ public class ApiRoot extends org.keycloak.services.resources.admin.AdminRoot {
         return requestHandlerFactory.cacheBusterRequestHandler(authenticate()).getCacheBuster();
     }
 
+    @GET
+    @Path("cache-stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    @NoCache
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        return requestHandlerFactory.cacheBusterRequestHandler(authenticate()).getCacheStatistics();
+    }
+
     @GET
     @Path("connection-info")
     @Produces(MediaType.APPLICATION_JSON)
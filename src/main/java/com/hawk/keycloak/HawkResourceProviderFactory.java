@@ -1,45 +1,186 @@
 package com.hawk.keycloak;
 
 import com.hawk.keycloak.auth.RoleRegistration;
+import com.hawk.keycloak.resources.decisions.DecisionCache;
+import com.hawk.keycloak.resources.metadata.AuthorizationMetadataCache;
+import com.hawk.keycloak.resources.shares.ShareChangeJournal;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
+import com.hawk.keycloak.roles.catalog.RoleCatalog;
+import com.hawk.keycloak.roles.graph.RoleGraphIndex;
+import com.hawk.keycloak.users.cache.UserInfoCache;
+import com.hawk.keycloak.users.changes.UserChangeJournal;
+import com.hawk.keycloak.users.membership.MembershipIndex;
+import com.hawk.keycloak.users.lookup.ParallelUserInfoRenderer;
+import com.hawk.keycloak.users.presence.OnlineUserIndex;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
 public class HawkResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String PROVIDER_ID = "hawk";
+
+    @Getter
+    private OnlineUserIndex onlineUserIndex;
+
+    @Getter
+    private UserInfoCache userInfoCache;
+
+    @Getter
+    private UserChangeJournal userChangeJournal;
+
+    @Getter
+    private RoleCatalog roleCatalog;
+
+    @Getter
+    private RoleGraphIndex roleGraphIndex;
+
+    private MembershipIndex membershipIndex;
+
+    @Getter
+    private ShareChangeJournal shareChangeJournal;
+
+    @Getter
+    private SharedResourceIndex sharedResourceIndex;
+
+    @Getter
+    private AuthorizationMetadataCache authorizationMetadataCache;
+
+    private DecisionCache decisionCache;
+
+    private ParallelUserInfoRenderer parallelUserInfoRenderer;
+    private ScheduledExecutorService backgroundExecutor;
+    private Config.Scope config;
 
     @Override
     public RealmResourceProvider create(KeycloakSession session) {
         return new HawkResourceProvider(
-                new RequestHandlerFactory(session),
+                new RequestHandlerFactory(session, onlineUserIndex, userInfoCache, userChangeJournal, roleCatalog, roleGraphIndex, membershipIndex,
+                        sharedResourceIndex, authorizationMetadataCache, decisionCache, parallelUserInfoRenderer),
                 session
         );
     }
 
     @Override
     public void init(Config.Scope scope) {
-
+        config = scope;
+        onlineUserIndex = new OnlineUserIndex();
+        // The weight of the cached claims is measured in (roughly) characters, the maximum age in seconds
+        userInfoCache = new UserInfoCache(
+                scope.getInt("userinfoCacheMaxEntries", 10000),
+                scope.getLong("userinfoCacheMaxWeight", 20_000_000L),
+                scope.getInt("userinfoCacheMaxAge", 300)
+        );
+        // How many changed users are returned at most, before a full resync is required,
+        // and how long (in seconds) the changes are kept in the database
+        userChangeJournal = new UserChangeJournal(
+                scope.getInt("userChangeJournalSize", 10000),
+                scope.getInt("userChangeJournalMaxAge", 604800)
+        );
+        // The number of realm and client combinations whose roles are kept
+        roleCatalog = new RoleCatalog(scope.getInt("roleCatalogMaxEntries", 1000));
+        roleGraphIndex = new RoleGraphIndex();
+        // The user attributes that get a set of users per value, e.g. "department,location",
+        // and how long (in seconds) the index of a realm is kept, before it is reloaded anyway
+        String[] indexedAttributes = scope.getArray("membershipIndexAttributes");
+        membershipIndex = new MembershipIndex(
+                indexedAttributes != null ? Set.copyOf(Arrays.asList(indexedAttributes)) : Set.of(),
+                scope.getInt("membershipIndexMaxAge", 300),
+                userChangeJournal
+        );
+        // How many changed resources are applied at most, before the shared resources are reloaded,
+        // and how long (in seconds) the changes are kept in the database
+        shareChangeJournal = new ShareChangeJournal(
+                scope.getInt("shareChangeJournalSize", 10000),
+                scope.getInt("shareChangeJournalMaxAge", 604800)
+        );
+        // How long (in seconds) the shared resources of a resource server are kept, before they are reloaded anyway
+        sharedResourceIndex = new SharedResourceIndex(scope.getInt("sharedResourceIndexMaxAge", 30), shareChangeJournal);
+        // The number of realm and client combinations whose resource server and scopes are kept
+        authorizationMetadataCache = new AuthorizationMetadataCache(scope.getInt("authorizationMetadataMaxEntries", 1000));
+        // How many access decisions are kept, and for how long (in seconds) at most
+        decisionCache = new DecisionCache(
+                scope.getInt("decisionCacheMaxEntries", 100000),
+                scope.getInt("decisionCacheMaxAge", 10)
+        );
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        java.util.concurrent.Executors.newSingleThreadScheduledExecutor().schedule(
+        parallelUserInfoRenderer = new ParallelUserInfoRenderer(
+                keycloakSessionFactory,
+                config.getInt("userinfoRenderingNodeConcurrency", Runtime.getRuntime().availableProcessors()),
+                config.getInt("userinfoRenderingRequestConcurrency", 4),
+                config.getInt("userinfoRenderingMinBatchSize", 200),
+                config.getInt("userinfoRenderingQueueSize", 64)
+        );
+
+        // How often (in seconds) the online user index is reconciled with the session store, in the background
+        int presenceResyncInterval = config.getInt("presenceResyncInterval", 60);
+        backgroundExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hawk-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        backgroundExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, onlineUserIndex::resync);
+            } catch (RuntimeException e) {
+                // A failed run must not cancel the following ones
+                log.warn("Failed to reconcile the online user index", e);
+            }
+        }, presenceResyncInterval, presenceResyncInterval, TimeUnit.SECONDS);
+
+        // The changes older than the maximum age of the change journals are removed once per hour
+        backgroundExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session ->
+                        userChangeJournal.purge(session.getProvider(JpaConnectionProvider.class).getEntityManager()));
+            } catch (RuntimeException e) {
+                log.warn("Failed to purge the user change journal", e);
+            }
+            try {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session ->
+                        shareChangeJournal.purge(session.getProvider(JpaConnectionProvider.class).getEntityManager()));
+            } catch (RuntimeException e) {
+                log.warn("Failed to purge the share change journal", e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+
+        backgroundExecutor.schedule(
                 () -> {
                     new RoleRegistration(keycloakSessionFactory).register();
                     new ClientScopeRegistration(keycloakSessionFactory).register();
                 },
                 1, // delay duration
-                java.util.concurrent.TimeUnit.SECONDS // delay unit
+                TimeUnit.SECONDS // delay unit
         );
     }
 
     @Override
     public void close() {
+        if (parallelUserInfoRenderer != null) {
+            parallelUserInfoRenderer.close();
+        }
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdownNow();
+        }
     }
 
     @Override
     public String getId() {
-        return "hawk";
+        return PROVIDER_ID;
     }
 }
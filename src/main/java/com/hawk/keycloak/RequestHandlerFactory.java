@@ -5,30 +5,64 @@ import com.hawk.keycloak.cacheBuster.CacheBusterRequestHandler;
 import com.hawk.keycloak.profiles.ProfileDataRequestHandler;
 import com.hawk.keycloak.profiles.ProfileStructureRequestHandler;
 import com.hawk.keycloak.resources.ResourceRequestHandler;
+import com.hawk.keycloak.resources.decisions.DecisionCache;
+import com.hawk.keycloak.resources.decisions.ResourceDecisionEvaluator;
+import com.hawk.keycloak.resources.lookup.BulkResourceLoader;
+import com.hawk.keycloak.resources.lookup.LocalResourceIdQuery;
 import com.hawk.keycloak.resources.lookup.ResourceFinder;
 import com.hawk.keycloak.resources.lookup.ResourceUserFinder;
 import com.hawk.keycloak.resources.lookup.SharedResourceFinder;
+import com.hawk.keycloak.resources.metadata.AuthorizationMetadataCache;
+import com.hawk.keycloak.resources.metadata.ResourceServerMetadata;
+import com.hawk.keycloak.resources.metadata.ScopeResolver;
+import com.hawk.keycloak.resources.service.BulkResourcePermissionSetter;
 import com.hawk.keycloak.resources.service.ResourcePermissionSetter;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
 import com.hawk.keycloak.roles.RolesRequestHandler;
+import com.hawk.keycloak.roles.catalog.RoleCatalog;
+import com.hawk.keycloak.roles.graph.RoleGraphIndex;
+import com.hawk.keycloak.users.lookup.BulkUserLoader;
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
+import com.hawk.keycloak.users.lookup.ParallelUserInfoRenderer;
 import com.hawk.keycloak.users.lookup.UserFinder;
 import com.hawk.keycloak.users.lookup.UserInfoGenerator;
 import com.hawk.keycloak.users.UsersRequestHandler;
+import com.hawk.keycloak.users.cache.UserInfoCache;
+import com.hawk.keycloak.users.changes.UserChangeJournal;
+import com.hawk.keycloak.users.membership.MembershipIndex;
+import com.hawk.keycloak.users.membership.MembershipQueryFactory;
+import com.hawk.keycloak.users.model.ClaimProjection;
+import com.hawk.keycloak.users.presence.OnlineUserIndex;
+import com.hawk.keycloak.util.ConditionalRequest;
 import com.hawk.keycloak.util.ConnectionInfoRequestHandler;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.authorization.AuthorizationProvider;
 import org.keycloak.authorization.model.ResourceServer;
 import org.keycloak.authorization.store.PermissionTicketStore;
 import org.keycloak.authorization.store.ResourceStore;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
 
 @RequiredArgsConstructor
 public class RequestHandlerFactory {
     final private KeycloakSession session;
+    final private OnlineUserIndex onlineUserIndex;
+    final private UserInfoCache userInfoCache;
+    final private UserChangeJournal userChangeJournal;
+    final private RoleCatalog roleCatalog;
+    final private RoleGraphIndex roleGraphIndex;
+    final private MembershipIndex membershipIndex;
+    final private SharedResourceIndex sharedResourceIndex;
+    final private AuthorizationMetadataCache authorizationMetadataCache;
+    final private DecisionCache decisionCache;
+    final private ParallelUserInfoRenderer parallelUserInfoRenderer;
 
     public CacheBusterRequestHandler cacheBusterRequestHandler(HawkPermissionEvaluator auth) {
-        return new CacheBusterRequestHandler(session, auth);
+        return new CacheBusterRequestHandler(session, auth, userInfoCache, roleCatalog, authorizationMetadataCache, decisionCache);
     }
 
     public UsersRequestHandler usersRequestHandler(HawkPermissionEvaluator auth) {
@@ -36,7 +70,17 @@ public class RequestHandlerFactory {
                 new UserFinder(
                         session.users(),
                         session.sessions(),
-                        session.getContext().getRealm()
+                        session.getContext().getRealm(),
+                        onlineUserIndex,
+                        new LocalUserIdQuery(session, session.getContext().getRealm()),
+                        new BulkUserLoader(session, session.getContext().getRealm()),
+                        new MembershipQueryFactory(
+                                session,
+                                session.getContext().getRealm(),
+                                membershipIndex,
+                                roleGraphIndex,
+                                new LocalUserIdQuery(session, session.getContext().getRealm())
+                        )
                 ),
                 session,
                 auth,
@@ -44,8 +88,13 @@ public class RequestHandlerFactory {
                         session,
                         session.getContext().getClient(),
                         session.getContext().getUri(),
-                        session.getContext().getConnection()
-                )
+                        session.getContext().getConnection(),
+                        userInfoCache,
+                        ClaimProjection.ALL
+                ),
+                parallelUserInfoRenderer,
+                new ConditionalRequest(session),
+                userChangeJournal
         );
     }
 
@@ -54,11 +103,18 @@ public class RequestHandlerFactory {
     }
 
     public RolesRequestHandler rolesRequestHandler(HawkPermissionEvaluator auth) {
-        return new RolesRequestHandler(session, auth);
+        return new RolesRequestHandler(
+                session,
+                auth,
+                new ConditionalRequest(session),
+                roleCatalog,
+                roleGraphIndex,
+                new LocalUserIdQuery(session, session.getContext().getRealm())
+        );
     }
 
     public ProfileStructureRequestHandler profileStructureRequestHandler(HawkPermissionEvaluator auth) {
-        return new ProfileStructureRequestHandler(session, auth, adminEventBuilder(auth));
+        return new ProfileStructureRequestHandler(session, auth, adminEventBuilder(auth), new ConditionalRequest(session));
     }
 
     public ProfileDataRequestHandler profileDataRequestHandler(HawkPermissionEvaluator auth) {
@@ -67,34 +123,69 @@ public class RequestHandlerFactory {
 
     public ResourceRequestHandler resourceRequestHandler(HawkPermissionEvaluator auth) {
         AuthorizationProvider authorizationProvider = session.getProvider(AuthorizationProvider.class);
-        ResourceServer resourceServer = authorizationProvider.getStoreFactory().getResourceServerStore().findByClient(
-                session.getContext().getClient()
+        RealmModel realm = session.getContext().getRealm();
+        ClientModel client = session.getContext().getClient();
+        ResourceServerMetadata metadata = authorizationMetadataCache.getMetadata(session, realm, client);
+        ResourceServer resourceServer = metadata.getResourceServerId() != null
+                ? authorizationProvider.getStoreFactory().getResourceServerStore().findById(metadata.getResourceServerId())
+                : null;
+        ScopeResolver scopeResolver = new ScopeResolver(
+                authorizationMetadataCache,
+                metadata,
+                realm,
+                client.getId(),
+                authorizationProvider.getStoreFactory().getScopeStore(),
+                resourceServer
         );
         PermissionTicketStore ticketStore = authorizationProvider.getStoreFactory().getPermissionTicketStore();
         ResourceStore resourceStore = authorizationProvider.getStoreFactory().getResourceStore();
+        AdminEventBuilder adminEvent = adminEventBuilder(auth);
         return new ResourceRequestHandler(
-                new ResourceUserFinder(ticketStore),
+                new ResourceUserFinder(ticketStore, session.getProvider(JpaConnectionProvider.class).getEntityManager()),
                 auth,
                 resourceStore,
                 resourceServer,
                 new ResourcePermissionSetter(
                         ticketStore,
                         resourceServer,
-                        authorizationProvider.getStoreFactory().getScopeStore(),
-                        adminEventBuilder(auth),
-                        session.getContext().getUri()
+                        scopeResolver,
+                        adminEvent,
+                        session.getContext().getUri(),
+                        session,
+                        session.getContext().getRealm(),
+                        sharedResourceIndex
+                ),
+                new BulkResourcePermissionSetter(
+                        session.getProvider(JpaConnectionProvider.class).getEntityManager(),
+                        ticketStore,
+                        resourceServer,
+                        scopeResolver,
+                        new BulkResourceLoader(session, resourceStore, resourceServer),
+                        new BulkUserLoader(session, session.getContext().getRealm()),
+                        adminEvent,
+                        session.getContext().getUri(),
+                        session,
+                        session.getContext().getRealm(),
+                        sharedResourceIndex
+                ),
+                new ResourceDecisionEvaluator(
+                        session.getProvider(JpaConnectionProvider.class).getEntityManager(),
+                        resourceServer,
+                        realm,
+                        decisionCache
                 ),
                 authorizationProvider,
                 new ResourceFinder(
                         session,
                         resourceStore,
-                        authorizationProvider.getStoreFactory().getResourceServerStore().findByClient(
-                                session.getContext().getClient()
-                        ),
-                        new SharedResourceFinder(ticketStore)
+                        resourceServer,
+                        new SharedResourceFinder(sharedResourceIndex, session),
+                        new LocalResourceIdQuery(session, resourceServer),
+                        new BulkResourceLoader(session, resourceStore, resourceServer)
                 ),
                 session.getContext().getRealm(),
-                session.users()
+                session.users(),
+                new ConditionalRequest(session)
         );
     }
 
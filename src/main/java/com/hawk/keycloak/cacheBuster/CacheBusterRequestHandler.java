@@ -1,20 +1,41 @@
 package com.hawk.keycloak.cacheBuster;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
+import com.hawk.keycloak.resources.decisions.DecisionCache;
+import com.hawk.keycloak.resources.metadata.AuthorizationMetadataCache;
+import com.hawk.keycloak.roles.catalog.RoleCatalog;
+import com.hawk.keycloak.users.cache.UserInfoCache;
+import com.hawk.keycloak.util.model.CacheStatistics;
 import jakarta.ws.rs.core.Response;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.models.KeycloakSession;
 
+import java.util.Map;
+
 
 @RequiredArgsConstructor
 public class CacheBusterRequestHandler {
 
     private final KeycloakSession session;
     private final HawkPermissionEvaluator auth;
+    private final UserInfoCache userInfoCache;
+    private final RoleCatalog roleCatalog;
+    private final AuthorizationMetadataCache authorizationMetadataCache;
+    private final DecisionCache decisionCache;
 
     public Response getCacheBuster() {
         auth.requireViewCacheBuster();
-        String attributeValue = session.getContext().getRealm().getAttribute("custom.hawk.cache-buster");
+        String attributeValue = RealmVersions.get(session.getContext().getRealm(), RealmVersions.Version.CACHE_BUSTER);
         return Response.ok(attributeValue).build();
     }
+
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        auth.requireViewCacheBuster();
+        return Map.of(
+                "userinfo", userInfoCache.getStatistics(),
+                "roles", roleCatalog.getStatistics(),
+                "authorization", authorizationMetadataCache.getStatistics(),
+                "decisions", decisionCache.getStatistics()
+        );
+    }
 }
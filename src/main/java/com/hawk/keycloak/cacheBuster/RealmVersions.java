@@ -0,0 +1,126 @@
+package com.hawk.keycloak.cacheBuster;
+
+import org.keycloak.models.RealmModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The versions of a realm that invalidate the node-wide caches and indexes of this extension on all nodes.
+ * <p>
+ * All versions are kept in a single realm attribute, so a change that affects several caches costs a single attribute
+ * write. The value looks like "cache-buster=1717171717171;claims=1717171717171;roles=...;shares:{scope}=...". The cache buster is
+ * written to its own, public attribute as well, which earlier versions of the extension used exclusively.
+ */
+public class RealmVersions {
+    public static final String VERSIONS_ATTRIBUTE = "custom.hawk.versions";
+    // Read by clients directly, so it is kept up to date next to the versions
+    public static final String CACHE_BUSTER_ATTRIBUTE = "custom.hawk.cache-buster";
+
+    public enum Version {
+        /** Moves on every observed change, see the "cache-buster" route */
+        CACHE_BUSTER("cache-buster"),
+        /** Changes that could alter the claims of many users (roles, groups, mappers, client scopes...) */
+        CLAIMS("claims"),
+        /** Changes of roles or clients, see {@link com.hawk.keycloak.roles.catalog.RoleCatalog} */
+        ROLES("roles"),
+        /** Changes of roles, groups or the role mappings of groups, see {@link com.hawk.keycloak.roles.graph.RoleGraphIndex} */
+        ROLE_GRAPH("role-graph"),
+        /** Changes of users, their role mappings or group memberships, see {@link com.hawk.keycloak.users.membership.MembershipIndex} */
+        MEMBERSHIP("membership"),
+        /** Changes of permission tickets, see {@link com.hawk.keycloak.resources.shares.SharedResourceIndex} */
+        SHARES("shares"),
+        /** Changes of resource servers and scopes, see {@link com.hawk.keycloak.resources.metadata.AuthorizationMetadataCache} */
+        AUTHORIZATION("authorization");
+
+        private final String key;
+
+        Version(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @return The current value of the version, or null if it was never set
+     */
+    public static String get(RealmModel realm, Version version) {
+        String value = parse(realm.getAttribute(VERSIONS_ATTRIBUTE)).get(version.key);
+
+        if (value == null && version == Version.CACHE_BUSTER) {
+            return realm.getAttribute(CACHE_BUSTER_ATTRIBUTE);
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the version of a part of the realm (e.g. the shares of a single resource server), so changes of one part
+     * do not invalidate the caches of the others
+     * @return The current value of the version of the scope, or null if it was never set
+     */
+    public static String get(RealmModel realm, Version version, String scope) {
+        return parse(realm.getAttribute(VERSIONS_ATTRIBUTE)).get(scopedKey(version, scope));
+    }
+
+    /**
+     * Sets the given versions with a single attribute write (two, if the cache buster is among them),
+     * all other versions are kept
+     */
+    public static void update(RealmModel realm, Map<Version, String> versions) {
+        update(realm, versions, null, null);
+    }
+
+    /**
+     * Same as {@link #update(RealmModel, Map)}, but sets the given version of the scope to the same value
+     * as the version of the realm, in the same write
+     */
+    public static void update(RealmModel realm, Map<Version, String> versions, Version scopedVersion, String scope) {
+        if (versions.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> values = parse(realm.getAttribute(VERSIONS_ATTRIBUTE));
+        versions.forEach((version, value) -> values.put(version.key, value));
+        if (scope != null && versions.containsKey(scopedVersion)) {
+            values.put(scopedKey(scopedVersion, scope), versions.get(scopedVersion));
+        }
+
+        realm.setAttribute(VERSIONS_ATTRIBUTE, format(values));
+
+        if (versions.containsKey(Version.CACHE_BUSTER)) {
+            realm.setAttribute(CACHE_BUSTER_ATTRIBUTE, versions.get(Version.CACHE_BUSTER));
+        }
+    }
+
+    private static String scopedKey(Version version, String scope) {
+        return version.key + ":" + scope;
+    }
+
+    private static Map<String, String> parse(String attribute) {
+        Map<String, String> values = new LinkedHashMap<>();
+
+        if (attribute == null || attribute.isEmpty()) {
+            return values;
+        }
+
+        for (String pair : attribute.split(";")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                values.put(pair.substring(0, separator), pair.substring(separator + 1));
+            }
+        }
+
+        return values;
+    }
+
+    private static String format(Map<String, String> values) {
+        StringBuilder builder = new StringBuilder();
+        values.forEach((key, value) -> {
+            if (!builder.isEmpty()) {
+                builder.append(';');
+            }
+            builder.append(key).append('=').append(value);
+        });
+        return builder.toString();
+    }
+}
@@ -1,33 +1,86 @@
 package com.hawk.keycloak.cacheBuster;
 
+import com.hawk.keycloak.resources.metadata.AuthorizationMetadataCache;
+import com.hawk.keycloak.resources.shares.ShareChangeJournal;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
+import com.hawk.keycloak.roles.catalog.RoleCatalog;
+import com.hawk.keycloak.roles.graph.RoleGraphIndex;
+import com.hawk.keycloak.users.cache.UserInfoCache;
+import com.hawk.keycloak.users.changes.UserChangeJournal;
+import com.hawk.keycloak.users.presence.OnlineUserIndex;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.keycloak.common.util.Time;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RealmProvider;
 
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
 import java.util.Set;
 
 @Slf4j
 @RequiredArgsConstructor
 public class WriteEventListenerProvider implements EventListenerProvider {
     private final RealmProvider realmProvider;
+    private final EntityManager em;
+    private final OnlineUserIndex onlineUserIndex;
+    private final UserInfoCache userInfoCache;
+    private final UserChangeJournal userChangeJournal;
+    private final ShareChangeJournal shareChangeJournal;
+    private final RoleCatalog roleCatalog;
+    private final RoleGraphIndex roleGraphIndex;
+    private final AuthorizationMetadataCache authorizationMetadataCache;
 
     @Override
     public void onEvent(Event event) {
-        if (isRelevantUserEvent(event.getType())) {
-            updateCacheBusterTimestamp(event.getRealmId());
+        // Claim changes move the cache-buster as well, otherwise they could not be sequenced in the change journal.
+        // The claims version is left alone: the changes of a single user are picked up through the user cache, see UserInfoCache
+        if (isRelevantUserEvent(event.getType()) || isClaimRelevantUserEvent(event.getType())) {
+            Set<RealmVersions.Version> versions = EnumSet.noneOf(RealmVersions.Version.class);
+            if (isMembershipRelevantUserEvent(event.getType())) {
+                versions.add(RealmVersions.Version.MEMBERSHIP);
+            }
+            Long version = updateVersions(event.getRealmId(), versions, null);
+
+            if (version != null && event.getUserId() != null) {
+                userChangeJournal.forRealm(em, event.getRealmId()).record(event.getUserId(), version);
+            }
         }
+
+        updatePresence(event);
     }
 
     @Override
     public void onEvent(AdminEvent adminEvent, boolean b) {
         if (isRelevantAdminEvent(adminEvent.getOperationType())) {
-            updateCacheBusterTimestamp(adminEvent.getRealmId());
+            String userId = getUserIdFromUserPath(adminEvent.getResourcePath());
+            String resourceServerId = getResourceServerId(adminEvent);
+            // Deleted users or clients affect the shares of all resource servers
+            Long version = updateVersions(
+                    adminEvent.getRealmId(),
+                    getAffectedVersions(adminEvent, userId),
+                    resourceServerId != null ? resourceServerId : SharedResourceIndex.ALL_RESOURCE_SERVERS
+            );
+
+            if (version != null) {
+                journalAdminEvent(adminEvent, userId, version);
+                if (resourceServerId != null && isSharesRelevant(adminEvent)) {
+                    journalShareChange(adminEvent, resourceServerId, version);
+                }
+            }
+        }
+
+        if (adminEvent.getResourceType() == ResourceType.USER
+                && adminEvent.getOperationType() == OperationType.DELETE) {
+            onlineUserIndex.markOffline(adminEvent.getRealmId(), getUserIdFromResourcePath(adminEvent.getResourcePath()));
         }
     }
 
@@ -37,6 +90,7 @@ public class WriteEventListenerProvider implements EventListenerProvider {
 
     private boolean isRelevantUserEvent(EventType eventType) {
         return Set.of(
+                EventType.REGISTER,
                 EventType.UPDATE_PROFILE,
                 EventType.CLIENT_INITIATED_ACCOUNT_LINKING,
                 EventType.DELETE_ACCOUNT,
@@ -47,6 +101,219 @@ public class WriteEventListenerProvider implements EventListenerProvider {
         ).contains(eventType);
     }
 
+    private Set<RealmVersions.Version> getAffectedVersions(AdminEvent adminEvent, String userId) {
+        Set<RealmVersions.Version> versions = EnumSet.noneOf(RealmVersions.Version.class);
+
+        // Changes of a single user (including its role mappings and groups) are picked up through the user cache
+        if (userId == null && isClaimRelevantResourceType(adminEvent.getResourceType())) {
+            versions.add(RealmVersions.Version.CLAIMS);
+        }
+        if (isRoleCatalogRelevantResourceType(adminEvent.getResourceType())) {
+            versions.add(RealmVersions.Version.ROLES);
+        }
+        if (isRoleGraphRelevant(adminEvent)) {
+            versions.add(RealmVersions.Version.ROLE_GRAPH);
+        }
+        if (isMembershipRelevant(adminEvent)) {
+            versions.add(RealmVersions.Version.MEMBERSHIP);
+        }
+        if (isSharesRelevant(adminEvent)) {
+            versions.add(RealmVersions.Version.SHARES);
+        }
+        if (isAuthorizationMetadataRelevantResourceType(adminEvent.getResourceType())) {
+            versions.add(RealmVersions.Version.AUTHORIZATION);
+        }
+
+        return versions;
+    }
+
+    private boolean isClaimRelevantUserEvent(EventType eventType) {
+        return Set.of(
+                EventType.UPDATE_PROFILE,
+                EventType.UPDATE_EMAIL,
+                EventType.VERIFY_EMAIL,
+                EventType.DELETE_ACCOUNT,
+                EventType.FEDERATED_IDENTITY_LINK,
+                EventType.REMOVE_FEDERATED_IDENTITY
+        ).contains(eventType);
+    }
+
+    private boolean isClaimRelevantResourceType(ResourceType resourceType) {
+        // Permission changes made by this extension come without a resource type, they don't affect any claims
+        return resourceType != null && Set.of(
+                ResourceType.REALM,
+                ResourceType.USER,
+                ResourceType.GROUP,
+                ResourceType.GROUP_MEMBERSHIP,
+                ResourceType.REALM_ROLE,
+                ResourceType.REALM_ROLE_MAPPING,
+                ResourceType.REALM_SCOPE_MAPPING,
+                ResourceType.CLIENT,
+                ResourceType.CLIENT_ROLE,
+                ResourceType.CLIENT_ROLE_MAPPING,
+                ResourceType.CLIENT_SCOPE,
+                ResourceType.CLIENT_SCOPE_MAPPING,
+                ResourceType.CLIENT_SCOPE_CLIENT_MAPPING,
+                ResourceType.PROTOCOL_MAPPER,
+                ResourceType.COMPONENT,
+                ResourceType.USER_PROFILE,
+                ResourceType.USER_FEDERATION_PROVIDER,
+                ResourceType.IDENTITY_PROVIDER_MAPPER
+        ).contains(resourceType);
+    }
+
+    private boolean isRoleCatalogRelevantResourceType(ResourceType resourceType) {
+        // Deleting a client or a realm removes its roles as well
+        return resourceType == ResourceType.REALM_ROLE
+                || resourceType == ResourceType.CLIENT_ROLE
+                || resourceType == ResourceType.CLIENT
+                || resourceType == ResourceType.REALM;
+    }
+
+    private boolean isRoleGraphRelevant(AdminEvent adminEvent) {
+        ResourceType resourceType = adminEvent.getResourceType();
+
+        if (resourceType == ResourceType.REALM_ROLE_MAPPING || resourceType == ResourceType.CLIENT_ROLE_MAPPING) {
+            // Only the role mappings of groups are part of the graph, the ones of users are queried directly
+            return adminEvent.getResourcePath() != null && adminEvent.getResourcePath().startsWith("groups/");
+        }
+
+        return isRoleCatalogRelevantResourceType(resourceType) || resourceType == ResourceType.GROUP;
+    }
+
+    private boolean isMembershipRelevantUserEvent(EventType eventType) {
+        // The users themselves and their attributes, the index holds no other data that users can change
+        return Set.of(
+                EventType.REGISTER,
+                EventType.UPDATE_PROFILE,
+                EventType.DELETE_ACCOUNT
+        ).contains(eventType);
+    }
+
+    private boolean isMembershipRelevant(AdminEvent adminEvent) {
+        ResourceType resourceType = adminEvent.getResourceType();
+
+        if (resourceType == ResourceType.REALM_ROLE_MAPPING || resourceType == ResourceType.CLIENT_ROLE_MAPPING) {
+            // Only the role mappings of users are part of the index, the ones of groups are part of the role graph
+            return adminEvent.getResourcePath() != null && adminEvent.getResourcePath().startsWith("users/");
+        }
+
+        // Deleting a role, group or client (with its roles and service account) removes its mappings as well
+        return resourceType == ResourceType.USER
+                || resourceType == ResourceType.GROUP_MEMBERSHIP
+                || resourceType == ResourceType.GROUP
+                || isRoleCatalogRelevantResourceType(resourceType);
+    }
+
+    private boolean isSharesRelevant(AdminEvent adminEvent) {
+        // Permission changes made by this extension (without a resource type) update the shared resource index themselves
+        ResourceType resourceType = adminEvent.getResourceType();
+        return resourceType == ResourceType.AUTHORIZATION_RESOURCE
+                || resourceType == ResourceType.AUTHORIZATION_RESOURCE_SERVER
+                || (adminEvent.getOperationType() == OperationType.DELETE
+                && (resourceType == ResourceType.USER || resourceType == ResourceType.CLIENT));
+    }
+
+    private boolean isAuthorizationMetadataRelevantResourceType(ResourceType resourceType) {
+        // Enabling or disabling the authorization services of a client comes as client update
+        return resourceType == ResourceType.AUTHORIZATION_RESOURCE_SERVER
+                || resourceType == ResourceType.AUTHORIZATION_SCOPE
+                || resourceType == ResourceType.CLIENT
+                || resourceType == ResourceType.REALM;
+    }
+
+    private void journalAdminEvent(AdminEvent adminEvent, String userId, long version) {
+        if (userId != null) {
+            // Covers the user itself, as well as its group memberships, role mappings...
+            userChangeJournal.forRealm(em, adminEvent.getRealmId()).record(userId, version);
+        } else if (isClaimRelevantResourceType(adminEvent.getResourceType())) {
+            // A change of a group, role or mapper affects an unknown set of users
+            userChangeJournal.forRealm(em, adminEvent.getRealmId()).reset(version);
+        }
+    }
+
+    private void journalShareChange(AdminEvent adminEvent, String resourceServerId, long version) {
+        String resourceId = adminEvent.getResourceType() == ResourceType.AUTHORIZATION_RESOURCE
+                ? getResourceIdFromPath(adminEvent.getResourcePath())
+                : null;
+
+        if (resourceId != null) {
+            shareChangeJournal.record(em, resourceServerId, resourceId, version);
+        } else {
+            // E.g. the resource server was changed, which affects an unknown set of resources
+            shareChangeJournal.reset(em, resourceServerId, version);
+        }
+    }
+
+    private String getResourceServerId(AdminEvent adminEvent) {
+        String resourcePath = adminEvent.getResourcePath();
+        if (resourcePath == null) {
+            return null;
+        }
+
+        // Changes through the protection API look like "authz/protection/resource_set/{resourceId}",
+        // and are made by the client of the resource server, which has the same id
+        if (resourcePath.startsWith("authz/protection/")) {
+            return adminEvent.getAuthDetails() != null ? adminEvent.getAuthDetails().getClientId() : null;
+        }
+
+        // Changes through the admin API look like "clients/{id}/authz/resource-server/..."
+        String[] parts = resourcePath.split("/");
+        return parts.length > 2 && parts[0].equals("clients") && parts[2].equals("authz") && !parts[1].isBlank() ? parts[1] : null;
+    }
+
+    private String getResourceIdFromPath(String resourcePath) {
+        // "clients/{id}/authz/resource-server/resource/{resourceId}" or "authz/protection/resource_set/{resourceId}"
+        String[] parts = resourcePath.split("/");
+        if (parts.length == 6 && parts[4].equals("resource")) {
+            return parts[5];
+        }
+        if (parts.length == 4 && parts[2].equals("resource_set")) {
+            return parts[3];
+        }
+        return null;
+    }
+
+    private String getUserIdFromUserPath(String resourcePath) {
+        // The resource path of user related events looks like "users/{id}" or "users/{id}/groups/{groupId}"
+        if (resourcePath == null || !resourcePath.startsWith("users/")) {
+            return null;
+        }
+
+        String[] parts = resourcePath.split("/");
+        return parts.length > 1 && !parts[1].isBlank() ? parts[1] : null;
+    }
+
+    private void updatePresence(Event event) {
+        if (event.getUserId() == null) {
+            return;
+        }
+
+        if (isSessionActivityEvent(event.getType())) {
+            onlineUserIndex.markSeen(event.getRealmId(), event.getUserId(), event.getSessionId(), Time.currentTime());
+        } else if (event.getType() == EventType.LOGOUT) {
+            // The user stays online, if they still have sessions on other devices
+            onlineUserIndex.markSessionEnded(event.getRealmId(), event.getUserId(), event.getSessionId());
+        } else if (event.getType() == EventType.DELETE_ACCOUNT) {
+            onlineUserIndex.markOffline(event.getRealmId(), event.getUserId());
+        }
+    }
+
+    private boolean isSessionActivityEvent(EventType eventType) {
+        return Set.of(
+                EventType.LOGIN,
+                EventType.CODE_TO_TOKEN,
+                EventType.REFRESH_TOKEN,
+                EventType.IDENTITY_PROVIDER_LOGIN,
+                EventType.IMPERSONATE
+        ).contains(eventType);
+    }
+
+    private String getUserIdFromResourcePath(String resourcePath) {
+        // The resource path of user events looks like "users/{id}"
+        return resourcePath.substring(resourcePath.lastIndexOf('/') + 1);
+    }
+
     private boolean isRelevantAdminEvent(OperationType operationType) {
         // Define which admin events should trigger the cache buster update
         return operationType == OperationType.CREATE
@@ -54,16 +321,41 @@ public class WriteEventListenerProvider implements EventListenerProvider {
                 || operationType == OperationType.DELETE;
     }
 
-    private void updateCacheBusterTimestamp(String realmId) {
+    /**
+     * Moves the cache buster and the given versions of the realm with a single attribute write,
+     * the affected local caches are dropped right away
+     * @param sharesScope The resource server whose shares version is moved along with the one of the realm
+     * @return The new value of the cache buster, or null if the realm does not exist
+     */
+    private Long updateVersions(String realmId, Set<RealmVersions.Version> versions, String sharesScope) {
         RealmModel realm = realmProvider.getRealm(realmId);
         if (realm == null) {
             log.error("Failed to update cache buster for realm {}\n", realmId);
-            return;
+            return null;
         }
 
-        long currentTimestamp = System.currentTimeMillis();
-        String oldValue = realm.getAttribute("custom.hawk.cache-buster");
-        realm.setAttribute("custom.hawk.cache-buster", String.valueOf(currentTimestamp));
+        String oldValue = RealmVersions.get(realm, RealmVersions.Version.CACHE_BUSTER);
+        // The clocks of the nodes may differ, the cache buster must move forward anyway
+        long currentTimestamp = Math.max(System.currentTimeMillis(), parseVersion(oldValue) + 1);
+
+        Map<RealmVersions.Version, String> updates = new EnumMap<>(RealmVersions.Version.class);
+        updates.put(RealmVersions.Version.CACHE_BUSTER, String.valueOf(currentTimestamp));
+        versions.forEach(version -> updates.put(version, String.valueOf(currentTimestamp)));
+        RealmVersions.update(realm, updates, RealmVersions.Version.SHARES, sharesScope);
+
+        // The new versions make the entries of all nodes unreachable, the local ones can be dropped right away
+        if (versions.contains(RealmVersions.Version.CLAIMS)) {
+            userInfoCache.invalidateRealm(realmId);
+        }
+        if (versions.contains(RealmVersions.Version.ROLES)) {
+            roleCatalog.invalidateRealm(realmId);
+        }
+        if (versions.contains(RealmVersions.Version.ROLE_GRAPH)) {
+            roleGraphIndex.invalidateRealm(realmId);
+        }
+        if (versions.contains(RealmVersions.Version.AUTHORIZATION)) {
+            authorizationMetadataCache.invalidateRealm(realmId);
+        }
 
         log.info(
                 "Updated cache buster for realm {} from {} to {}\n",
@@ -71,5 +363,15 @@ public class WriteEventListenerProvider implements EventListenerProvider {
                 oldValue != null ? oldValue : "null",
                 currentTimestamp
         );
+
+        return currentTimestamp;
+    }
+
+    private long parseVersion(String version) {
+        try {
+            return version != null ? Long.parseLong(version) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 }
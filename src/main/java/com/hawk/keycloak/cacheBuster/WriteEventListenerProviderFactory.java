@@ -1,15 +1,30 @@
 package com.hawk.keycloak.cacheBuster;
 
+import com.hawk.keycloak.HawkResourceProviderFactory;
 import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
 
 public class WriteEventListenerProviderFactory implements EventListenerProviderFactory {
+    private HawkResourceProviderFactory hawkFactory;
+
     @Override
     public EventListenerProvider create(KeycloakSession keycloakSession) {
-        return new WriteEventListenerProvider(keycloakSession.realms());
+        return new WriteEventListenerProvider(
+                keycloakSession.realms(),
+                keycloakSession.getProvider(JpaConnectionProvider.class).getEntityManager(),
+                hawkFactory.getOnlineUserIndex(),
+                hawkFactory.getUserInfoCache(),
+                hawkFactory.getUserChangeJournal(),
+                hawkFactory.getShareChangeJournal(),
+                hawkFactory.getRoleCatalog(),
+                hawkFactory.getRoleGraphIndex(),
+                hawkFactory.getAuthorizationMetadataCache()
+        );
     }
 
     @Override
@@ -19,6 +34,11 @@ public class WriteEventListenerProviderFactory implements EventListenerProviderF
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        // The indexes are owned by the resource provider factory, so both share the same node-wide instances
+        hawkFactory = (HawkResourceProviderFactory) keycloakSessionFactory.getProviderFactory(
+                RealmResourceProvider.class,
+                HawkResourceProviderFactory.PROVIDER_ID
+        );
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.hawk.keycloak.profiles;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
+import com.hawk.keycloak.util.ConditionalRequest;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import lombok.RequiredArgsConstructor;
@@ -20,10 +22,16 @@ public class ProfileStructureRequestHandler {
     private final KeycloakSession session;
     private final HawkPermissionEvaluator auth;
     private final AdminEventBuilder adminEvent;
+    private final ConditionalRequest conditionalRequest;
 
-    public UPConfig handleGetStructure() {
+    public Response handleGetStructure() {
         auth.requireViewProfileStructure();
-        return session.getProvider(UserProfileProvider.class).getConfiguration();
+        EntityTag entityTag = conditionalRequest.evaluate();
+
+        return ConditionalRequest.tag(
+                Response.ok(session.getProvider(UserProfileProvider.class).getConfiguration()).type(MediaType.APPLICATION_JSON),
+                entityTag
+        ).build();
     }
 
     public Response handleUpdateStructure(UPConfig config) {
@@ -1,35 +1,64 @@
 package com.hawk.keycloak.resources;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.resources.decisions.ResourceDecisionEvaluator;
+import com.hawk.keycloak.resources.lookup.BulkResourceLoader;
 import com.hawk.keycloak.resources.lookup.ResourceFinder;
 import com.hawk.keycloak.resources.lookup.ResourceUserFinder;
+import com.hawk.keycloak.resources.model.ResourceDecisionQuery;
+import com.hawk.keycloak.resources.model.ResourcePermissionAssignment;
+import com.hawk.keycloak.resources.model.ResourcePermissionAssignmentResult;
+import com.hawk.keycloak.resources.model.ResourceProjection;
 import com.hawk.keycloak.resources.model.UserResourcePermission;
+import com.hawk.keycloak.resources.service.BulkResourcePermissionSetter;
 import com.hawk.keycloak.resources.service.ResourcePermissionSetter;
+import com.hawk.keycloak.util.ConditionalRequest;
+import com.hawk.keycloak.util.PageCursor;
+import com.hawk.keycloak.util.ResultWindow;
+import com.hawk.keycloak.util.streaming.StreamFormat;
+import com.hawk.keycloak.util.streaming.StreamingJsonResponse;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.Response;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.authorization.AuthorizationProvider;
 import org.keycloak.authorization.model.Resource;
 import org.keycloak.authorization.model.ResourceServer;
 import org.keycloak.authorization.store.ResourceStore;
+import org.keycloak.authorization.store.StoreFactory;
+import org.keycloak.common.util.Time;
 import org.keycloak.models.*;
 import org.keycloak.models.utils.ModelToRepresentation;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 @RequiredArgsConstructor
 public class ResourceRequestHandler {
+    public static final String MISSING_IDS_HEADER = "X-Hawk-Missing-Ids";
+    public static final String MISSING_IDS_COUNT_HEADER = "X-Hawk-Missing-Ids-Count";
+    // Proxies reject responses with large headers (often at 8 KB), an id takes up to 37 characters
+    private static final int MAX_MISSING_IDS_IN_HEADER = 100;
+    // Resources and tickets can be changed without any event (e.g. through the protection API or the account console),
+    // so the entity tag of a resource list is only valid for this many seconds
+    private static final int RESOURCES_TAG_MAX_AGE = 30;
+
     private final ResourceUserFinder resourceUserFinder;
     private final HawkPermissionEvaluator auth;
     private final ResourceStore resourceStore;
     private final ResourceServer resourceServer;
     private final ResourcePermissionSetter permissionSetter;
+    private final BulkResourcePermissionSetter bulkPermissionSetter;
+    private final ResourceDecisionEvaluator decisionEvaluator;
     private final AuthorizationProvider authorization;
     private final ResourceFinder resourceFinder;
     private final RealmModel realm;
     private final UserProvider userProvider;
+    private final ConditionalRequest conditionalRequest;
 
     public Collection<UserResourcePermission> handleUsersOfResourceRequest(String resourceId) {
         auth.requireViewResourcePermissions();
@@ -43,6 +72,19 @@ public class ResourceRequestHandler {
         return resourceUserFinder.getUsersOfResource(resource);
     }
 
+    public Response handleUsersOfResourcesRequest(List<String> resourceIds) {
+        auth.requireViewResourcePermissions();
+
+        if (resourceIds.isEmpty()) {
+            throw new BadRequestException("The ids are required");
+        }
+
+        Map<String, Collection<UserResourcePermission>> usersOfResources = resourceUserFinder.getUsersOfResources(resourceServer, resourceIds);
+
+        List<String> missingIds = resourceIds.stream().distinct().filter(id -> !usersOfResources.containsKey(id)).toList();
+        return addMissingIds(Response.ok(usersOfResources), missingIds).build();
+    }
+
     public Response handleSetUserPermissionsRequest(String userId, String resourceId, List<String> scopes) {
         auth.requireManageResourcePermissions();
 
@@ -61,6 +103,32 @@ public class ResourceRequestHandler {
         return Response.noContent().build();
     }
 
+    public List<ResourcePermissionAssignmentResult> handleSetPermissionsInBulkRequest(List<ResourcePermissionAssignment> assignments) {
+        auth.requireManageResourcePermissions();
+
+        if (assignments == null) {
+            throw new BadRequestException("The assignments are required");
+        }
+        if (assignments.size() > BulkResourcePermissionSetter.MAX_ASSIGNMENTS) {
+            throw new BadRequestException("At most " + BulkResourcePermissionSetter.MAX_ASSIGNMENTS + " assignments are allowed per request");
+        }
+
+        return bulkPermissionSetter.setPermissions(assignments);
+    }
+
+    public List<Boolean> handleDecisionsRequest(List<ResourceDecisionQuery> queries) {
+        auth.requireViewResourcePermissions();
+
+        if (queries == null) {
+            throw new BadRequestException("The queries are required");
+        }
+        if (queries.stream().anyMatch(query -> query == null || query.getUser() == null || query.getResource() == null)) {
+            throw new BadRequestException("Every query requires a user and a resource");
+        }
+
+        return decisionEvaluator.decide(queries);
+    }
+
     public Response handleGetResourcesRequest(
             List<String> ids,
             String sharedWith,
@@ -72,15 +140,118 @@ public class ResourceRequestHandler {
             Boolean idsOnly,
             Boolean sharedOnly,
             Integer firstResult,
-            Integer maxResult
+            Integer maxResult,
+            String cursor,
+            String view,
+            List<String> fields,
+            StreamFormat format
     ) {
         auth.requireViewResourcePermissions();
+        ResourceProjection projection = ResourceProjection.fromRequest(view, fields);
+        EntityTag entityTag = conditionalRequest.evaluate(
+                RealmVersions.get(realm, RealmVersions.Version.SHARES),
+                String.valueOf(Time.currentTime() / RESOURCES_TAG_MAX_AGE)
+        );
+
+        if (cursor != null) {
+            if (firstResult != null) {
+                throw new BadRequestException("Pagination by cursor can not be combined with the first parameter");
+            }
+
+            PageCursor pageCursor = PageCursor.resolve(cursor, realm, "resources", resourceServer.getId(), ids, sharedWith, name, uri, owner, type, exactName, sharedOnly);
+            int max = ResultWindow.limitMax(maxResult);
+
+            // The page is resolved upfront, so the cursor of the next page can be sent with the headers
+            List<Resource> page = resourceFinder.findResourcesAfter(ids, sharedWith, name, uri, owner, type, exactName, sharedOnly, pageCursor.lastKey(), max).toList();
+
+            return ConditionalRequest.tag(
+                    addMissingIds(pageCursor.addHeaders(
+                            toResponse(page.stream(), idsOnly, projection, format),
+                            page.stream().map(Resource::getId).toList(),
+                            max,
+                            realm
+                    )),
+                    entityTag
+            ).build();
+        }
+
         Stream<Resource> resources = resourceFinder.findResources(ids, sharedWith, name, uri, owner, type, exactName, sharedOnly, firstResult, maxResult);
 
+        return ConditionalRequest.tag(addMissingIds(toResponse(resources, idsOnly, projection, format)), entityTag).build();
+    }
+
+    public Response handleCountResourcesRequest(
+            List<String> ids,
+            String sharedWith,
+            String name,
+            String uri,
+            String owner,
+            String type,
+            Boolean exactName,
+            Boolean sharedOnly
+    ) {
+        auth.requireViewResourcePermissions();
+
+        long count = resourceFinder.countResources(ids, sharedWith, name, uri, owner, type, exactName, sharedOnly);
+
+        return Response.ok(count).build();
+    }
+
+    /**
+     * Requested ids are resolved upfront, so the ids of deleted resources can be sent with the headers
+     */
+    private Response.ResponseBuilder addMissingIds(Response.ResponseBuilder response) {
+        return addMissingIds(response, resourceFinder.getMissingIds());
+    }
+
+    /**
+     * Only the first missing ids are listed, the count tells whether the list is complete
+     */
+    private Response.ResponseBuilder addMissingIds(Response.ResponseBuilder response, List<String> missingIds) {
+        if (!missingIds.isEmpty()) {
+            List<String> listedIds = missingIds.subList(0, Math.min(missingIds.size(), MAX_MISSING_IDS_IN_HEADER));
+            response.header(MISSING_IDS_HEADER, String.join(",", listedIds));
+            response.header(MISSING_IDS_COUNT_HEADER, missingIds.size());
+        }
+        return response;
+    }
+
+    /**
+     * Only the ids are kept, the resources are loaded and rendered again while the response is written
+     */
+    private Response.ResponseBuilder toResponse(Stream<Resource> resources, Boolean idsOnly, ResourceProjection projection, StreamFormat format) {
+        List<String> resourceIds = resources.map(Resource::getId).toList();
+
         if(idsOnly != null && idsOnly) {
-            return Response.ok(resources.map(Resource::getId)).build();
+            return StreamingJsonResponse.okStrings(resourceIds, format);
         }
 
-        return Response.ok(resources.map(r -> ModelToRepresentation.toRepresentation(r, resourceServer, authorization, true))).build();
+        String resourceServerId = resourceServer.getId();
+
+        return StreamingJsonResponse.render(
+                authorization.getKeycloakSession(),
+                resourceIds,
+                StreamingJsonResponse.DEFAULT_CHUNK_SIZE,
+                outputSession -> {
+                    AuthorizationProvider outputAuthorization = outputSession.getProvider(AuthorizationProvider.class);
+                    StoreFactory storeFactory = outputAuthorization.getStoreFactory();
+                    ResourceServer outputResourceServer = storeFactory.getResourceServerStore().findById(resourceServerId);
+
+                    if (projection != null && projection.needsScopes()) {
+                        // Loads all scopes of the resource server at once, so resolving the scopes of each resource
+                        // is served by the cache or the persistence context
+                        storeFactory.getScopeStore().findByResourceServer(outputResourceServer);
+                    }
+
+                    return chunk -> new BulkResourceLoader(outputSession, storeFactory.getResourceStore(), outputResourceServer)
+                            .loadByIds(chunk)
+                            .stream()
+                            .map(resource -> projection != null
+                                    ? projection.render(resource)
+                                    : ModelToRepresentation.toRepresentation(resource, outputResourceServer, outputAuthorization, true))
+                            .toList();
+                },
+                format
+        );
     }
 }
@@ -0,0 +1,56 @@
+package com.hawk.keycloak.resources.decisions;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
+import com.hawk.keycloak.util.BoundedCache;
+import com.hawk.keycloak.util.model.CacheStatistics;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.RealmModel;
+
+import java.util.Objects;
+
+/**
+ * Node-wide, short-lived cache of access denials, see {@link ResourceDecisionEvaluator}.
+ * <p>
+ * Only denials are cached: a stale denial only delays a new permission, while a stale permission would keep
+ * a revoked access alive. Allowed decisions are always evaluated.
+ * <p>
+ * Entries are versioned by the "shares version" of the realm (see {@link SharedResourceIndex}), which is updated on every
+ * permission change of this extension and by the {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} whenever
+ * resources or users are changed. Because tickets can also be changed without any event (e.g. through the account console),
+ * entries expire after the configured maximum age as well.
+ */
+public class DecisionCache {
+    // The time the access was denied at
+    private final BoundedCache<Key, Integer> cache;
+    private final int maxAge;
+
+    public DecisionCache(int maxEntries, int maxAge) {
+        this.cache = new BoundedCache<>(maxEntries, Long.MAX_VALUE, deniedAt -> 1);
+        this.maxAge = maxAge;
+    }
+
+    public Key createKey(RealmModel realm, String resourceServerId, String userId, String resourceId, String scope) {
+        String version = Objects.requireNonNullElse(RealmVersions.get(realm, RealmVersions.Version.SHARES), "");
+        return new Key(realm.getId(), version, resourceServerId, userId, resourceId, scope != null ? scope : "");
+    }
+
+    /**
+     * Returns true, if the access was denied recently
+     */
+    public boolean isDenied(Key key) {
+        Integer deniedAt = cache.get(key);
+        return deniedAt != null && deniedAt >= Time.currentTime() - maxAge;
+    }
+
+    public void putDenial(Key key) {
+        cache.put(key, Time.currentTime());
+    }
+
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    public record Key(String realmId, String version, String resourceServerId, String userId, String resourceId, String scope) {
+    }
+}
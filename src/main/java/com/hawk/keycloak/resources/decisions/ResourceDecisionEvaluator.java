@@ -0,0 +1,119 @@
+package com.hawk.keycloak.resources.decisions;
+
+import com.hawk.keycloak.resources.model.ResourceDecisionQuery;
+import com.hawk.keycloak.util.ChunkedStream;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.models.RealmModel;
+
+import java.util.*;
+
+/**
+ * Decides for many (user, resource, scope) tuples at once, if the user may access the resource: either the user owns
+ * the resource, or the user was granted a permission ticket for the scope (for any scope, if no scope is given).
+ * The scope can be given by name or by id.
+ * Policies of the resource server are not evaluated, this is the same decision the "share" functionality is based on.
+ * <p>
+ * Recent denials are served from the {@link DecisionCache}, all other decisions are evaluated with one query
+ * per chunk of resources and users, that loads the owners and the granted tickets together.
+ */
+@RequiredArgsConstructor
+public class ResourceDecisionEvaluator {
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final EntityManager em;
+    private final ResourceServer resourceServer;
+    private final RealmModel realm;
+    private final DecisionCache decisionCache;
+
+    public List<Boolean> decide(List<ResourceDecisionQuery> queries) {
+        Boolean[] decisions = new Boolean[queries.size()];
+        DecisionCache.Key[] keys = new DecisionCache.Key[queries.size()];
+        Set<String> resourceIds = new HashSet<>();
+        Set<String> userIds = new HashSet<>();
+
+        for (int i = 0; i < queries.size(); i++) {
+            ResourceDecisionQuery query = queries.get(i);
+            keys[i] = decisionCache.createKey(realm, resourceServer.getId(), query.getUser(), query.getResource(), query.getScope());
+
+            if (decisionCache.isDenied(keys[i])) {
+                decisions[i] = false;
+            } else {
+                resourceIds.add(query.getResource());
+                userIds.add(query.getUser());
+            }
+        }
+
+        if (!resourceIds.isEmpty()) {
+            Grants grants = loadGrants(resourceIds, userIds);
+
+            for (int i = 0; i < queries.size(); i++) {
+                if (decisions[i] == null) {
+                    decisions[i] = grants.allows(queries.get(i));
+                    if (!decisions[i]) {
+                        decisionCache.putDenial(keys[i]);
+                    }
+                }
+            }
+        }
+
+        return Arrays.asList(decisions);
+    }
+
+    private Grants loadGrants(Set<String> resourceIds, Set<String> userIds) {
+        Grants grants = new Grants();
+        List<List<String>> userChunks = ChunkedStream.chunk(userIds.stream(), MAX_IDS_PER_QUERY).toList();
+
+        ChunkedStream.chunk(resourceIds.stream(), MAX_IDS_PER_QUERY).forEach(resourceChunk -> {
+            for (List<String> userChunk : userChunks) {
+                // Resources without granted tickets of the users are returned as well (without a requester), to know their owner
+                em.createQuery("select r.id, r.owner, t.requester, s.id, s.name from ResourceEntity r"
+                                + " left join PermissionTicketEntity t on t.resource = r and t.owner = r.owner"
+                                + " and t.grantedTimestamp is not null and t.requester in :userIds"
+                                + " left join t.scope s"
+                                + " where r.resourceServer = :serverId and r.id in :resourceIds", Object[].class)
+                        .setParameter("serverId", resourceServer.getId())
+                        .setParameter("resourceIds", resourceChunk)
+                        .setParameter("userIds", userChunk)
+                        .getResultStream()
+                        .forEach(row -> grants.add((String) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4]));
+            }
+        });
+
+        return grants;
+    }
+
+    private static class Grants {
+        private final Map<String, String> ownersByResource = new HashMap<>();
+        // resource -> requester -> ids and names of the granted scopes (a ticket without scope is stored as empty string)
+        private final Map<String, Map<String, Set<String>>> scopesByResource = new HashMap<>();
+
+        void add(String resourceId, String ownerId, String requesterId, String scopeId, String scopeName) {
+            ownersByResource.put(resourceId, ownerId);
+            if (requesterId != null) {
+                Set<String> scopes = scopesByResource.computeIfAbsent(resourceId, k -> new HashMap<>())
+                        .computeIfAbsent(requesterId, k -> new HashSet<>());
+                if (scopeId != null) {
+                    scopes.add(scopeId);
+                    scopes.add(scopeName);
+                } else {
+                    scopes.add("");
+                }
+            }
+        }
+
+        boolean allows(ResourceDecisionQuery query) {
+            if (query.getUser().equals(ownersByResource.get(query.getResource()))) {
+                return true;
+            }
+
+            Set<String> scopes = scopesByResource.getOrDefault(query.getResource(), Map.of()).get(query.getUser());
+            if (scopes == null) {
+                return false;
+            }
+            return query.getScope() == null || scopes.contains(query.getScope());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.hawk.keycloak.resources.lookup;
+
+import com.hawk.keycloak.util.ChunkedStream;
+import com.hawk.keycloak.util.LocalCacheProbe;
+import jakarta.persistence.EntityManager;
+import lombok.Getter;
+import org.keycloak.authorization.jpa.entities.ResourceEntity;
+import org.keycloak.authorization.model.Resource;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.authorization.store.ResourceStore;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Loads many resources by their ids with a few queries per chunk of ids, instead of several round trips per resource.
+ * <p>
+ * Only the resources that are not held by the authorization cache are prefetched: their entities (with their uris,
+ * scopes and attributes) are loaded into the persistence context in one go, afterward every resource is resolved through
+ * the regular {@link ResourceStore}. Cached resources are served by the authorization cache, all others are found in the
+ * persistence context without hitting the database again and are put into the authorization cache on the way.
+ */
+public class BulkResourceLoader {
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final EntityManager em;
+    private final ResourceStore resourceStore;
+    private final ResourceServer resourceServer;
+    private final Predicate<String> isCached;
+
+    /**
+     * The requested ids that did not match any resource of the resource server, in the order they were requested
+     */
+    @Getter
+    private final List<String> missingIds = new ArrayList<>();
+
+    public BulkResourceLoader(KeycloakSession session, ResourceStore resourceStore, ResourceServer resourceServer) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.resourceStore = resourceStore;
+        this.resourceServer = resourceServer;
+        this.isCached = LocalCacheProbe.forCache(session, LocalCacheProbe.AUTHORIZATION_CACHE);
+    }
+
+    /**
+     * Returns the resources in the order of the given ids, duplicates and unknown ids are skipped.
+     * The resources are loaded eagerly, so the missing ids are known right away.
+     */
+    public List<Resource> loadByIds(List<String> resourceIds) {
+        List<Resource> resources = new ArrayList<>();
+
+        ChunkedStream.chunk(new LinkedHashSet<>(resourceIds).stream(), MAX_IDS_PER_QUERY).forEach(chunk -> {
+            prefetch(chunk);
+            for (String resourceId : chunk) {
+                Resource resource = resourceStore.findById(resourceServer, resourceId);
+                if (resource != null) {
+                    resources.add(resource);
+                } else {
+                    missingIds.add(resourceId);
+                }
+            }
+        });
+
+        return resources;
+    }
+
+    private void prefetch(List<String> resourceIds) {
+        resourceIds = resourceIds.stream().filter(isCached.negate()).toList();
+
+        if (resourceIds.isEmpty()) {
+            return;
+        }
+
+        // The collections are fetched one by one, fetching several bags in one query is not supported
+        em.createQuery("select distinct r from ResourceEntity r left join fetch r.uris where r.resourceServer = :serverId and r.id in :ids", ResourceEntity.class)
+                .setParameter("serverId", resourceServer.getId())
+                .setParameter("ids", resourceIds)
+                .getResultList();
+        em.createQuery("select distinct r from ResourceEntity r left join fetch r.scopes where r.resourceServer = :serverId and r.id in :ids", ResourceEntity.class)
+                .setParameter("serverId", resourceServer.getId())
+                .setParameter("ids", resourceIds)
+                .getResultList();
+        em.createQuery("select distinct r from ResourceEntity r left join fetch r.attributes where r.resourceServer = :serverId and r.id in :ids", ResourceEntity.class)
+                .setParameter("serverId", resourceServer.getId())
+                .setParameter("ids", resourceIds)
+                .getResultList();
+    }
+}
@@ -0,0 +1,94 @@
+package com.hawk.keycloak.resources.lookup;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.*;
+import org.keycloak.authorization.jpa.entities.ResourceEntity;
+import org.keycloak.authorization.model.Resource;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs keyset (seek) queries against the local (JPA) authorization store, that return resource ids ordered by id.
+ * The filters are interpreted exactly like {@link org.keycloak.authorization.jpa.store.JPAResourceStore#find} does.
+ */
+public class LocalResourceIdQuery {
+    private final EntityManager em;
+    private final ResourceServer resourceServer;
+
+    public LocalResourceIdQuery(KeycloakSession session, ResourceServer resourceServer) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.resourceServer = resourceServer;
+    }
+
+    /**
+     * Finds the ids of the resources matching the given filters
+     * @param search The filters, the same map you would pass to {@link org.keycloak.authorization.store.ResourceStore#find}
+     * @param afterId If not null, only ids greater than this one are returned
+     * @param maxResults The maximum number of ids to return
+     */
+    public List<String> findIds(Map<Resource.FilterOption, String[]> search, String afterId, int maxResults) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<String> query = builder.createQuery(String.class);
+        Root<ResourceEntity> root = query.from(ResourceEntity.class);
+
+        List<Predicate> predicates = toPredicates(builder, root, search);
+
+        if (afterId != null) {
+            predicates.add(builder.greaterThan(root.get("id"), afterId));
+        }
+
+        query.select(root.get("id"))
+                .distinct(true)
+                .where(predicates.toArray(Predicate[]::new))
+                .orderBy(builder.asc(root.get("id")));
+
+        return em.createQuery(query).setMaxResults(maxResults).getResultList();
+    }
+
+    /**
+     * Counts the resources matching the given filters, see {@link #findIds}
+     */
+    public long count(Map<Resource.FilterOption, String[]> search) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<ResourceEntity> root = query.from(ResourceEntity.class);
+
+        query.select(builder.countDistinct(root.get("id")))
+                .where(toPredicates(builder, root, search).toArray(Predicate[]::new));
+
+        return em.createQuery(query).getSingleResult();
+    }
+
+    private List<Predicate> toPredicates(CriteriaBuilder builder, Root<ResourceEntity> root, Map<Resource.FilterOption, String[]> search) {
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(builder.equal(root.get("resourceServer"), resourceServer.getId()));
+
+        search.forEach((filterOption, value) -> {
+            switch (filterOption) {
+                case ID:
+                case OWNER:
+                    predicates.add(root.get(filterOption.getName()).in((Object[]) value));
+                    break;
+                case URI:
+                    predicates.add(builder.lower(root.join("uris")).in(value[0].toLowerCase()));
+                    break;
+                case NAME:
+                case TYPE:
+                    predicates.add(builder.like(builder.lower(root.get(filterOption.getName())), "%" + value[0].toLowerCase() + "%"));
+                    break;
+                case EXACT_NAME:
+                    predicates.add(builder.equal(builder.lower(root.get(filterOption.getName())), value[0].toLowerCase()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported filter [" + filterOption + "]");
+            }
+        });
+
+        return predicates;
+    }
+}
@@ -1,5 +1,8 @@
 package com.hawk.keycloak.resources.lookup;
 
+import com.hawk.keycloak.util.AdaptiveChunkedStream;
+import com.hawk.keycloak.util.ChunkedStream;
+import com.hawk.keycloak.util.KeysetStream;
 import com.hawk.keycloak.util.ResultWindow;
 import jakarta.ws.rs.BadRequestException;
 import org.keycloak.authorization.model.Resource;
@@ -9,20 +12,28 @@ import org.keycloak.models.*;
 
 import java.util.*;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 public class ResourceFinder {
+    private static final int CHUNK_SIZE = 100;
+    private static final int MAX_CHUNK_SIZE = 1000;
+
     private final ResourceStore resourceStore;
     private final ResourceServer resourceServer;
     private final SharedResourceFinder sharedResourceFinder;
     private final RealmModel realm;
     private final UserProvider userProvider;
+    private final LocalResourceIdQuery localResourceIdQuery;
+    private final BulkResourceLoader bulkResourceLoader;
 
-    public ResourceFinder(KeycloakSession session, ResourceStore resourceStore, ResourceServer resourceServer, SharedResourceFinder sharedResourceFinder) {
+    public ResourceFinder(KeycloakSession session, ResourceStore resourceStore, ResourceServer resourceServer, SharedResourceFinder sharedResourceFinder, LocalResourceIdQuery localResourceIdQuery, BulkResourceLoader bulkResourceLoader) {
         this.resourceStore = resourceStore;
+        this.bulkResourceLoader = bulkResourceLoader;
         this.resourceServer = resourceServer;
         this.sharedResourceFinder = sharedResourceFinder;
+        this.localResourceIdQuery = localResourceIdQuery;
         this.realm = session.getContext().getRealm();
         this.userProvider = session.users();
     }
@@ -38,6 +49,44 @@ public class ResourceFinder {
             Boolean sharedOnly,
             Integer firstResult,
             Integer maxResults
+    ) {
+        return findAllResources(ids, sharedWith, name, uri, owner, type, exactName, sharedOnly, false, null,
+                ResultWindow.limitFirst(firstResult), ResultWindow.limitMax(maxResults));
+    }
+
+    /**
+     * Same as {@link #findResources}, but uses keyset pagination: the resources are ordered by id
+     * (or by the order of the requested ids) and the page starts right after the resource with the given id.
+     */
+    public Stream<Resource> findResourcesAfter(
+            List<String> ids,
+            String sharedWith,
+            String name,
+            String uri,
+            String owner,
+            String type,
+            Boolean exactName,
+            Boolean sharedOnly,
+            String afterId,
+            Integer maxResults
+    ) {
+        return findAllResources(ids, sharedWith, name, uri, owner, type, exactName, sharedOnly, true, afterId,
+                0, ResultWindow.limitMax(maxResults));
+    }
+
+    private Stream<Resource> findAllResources(
+            List<String> ids,
+            String sharedWith,
+            String name,
+            String uri,
+            String owner,
+            String type,
+            Boolean exactName,
+            Boolean sharedOnly,
+            boolean keyset,
+            String afterId,
+            int firstResult,
+            int maxResults
     ) {
         boolean hasIdFilter = ids != null && !ids.isEmpty();
         boolean hasOwnerFilter = owner != null && !owner.trim().isEmpty();
@@ -67,39 +116,173 @@ public class ResourceFinder {
         boolean hasSharedWithFilter = sharedWith != null;
         boolean hasSharedByFilter = sharedBy != null;
 
-        Stream<Resource> stream;
+        if (hasIdFilter && hasBasicFilters) {
+            throw new BadRequestException("When requesting a set of ids, you can not define any of the basic filters (name, uri, owner, type)");
+        }
+
+        ResourceSource source;
         String usedStreamGenerator;
 
         if (hasIdFilter) {
-            if (hasBasicFilters) {
-                throw new BadRequestException("When requesting a set of ids, you can not define any of the basic filters (name, uri, owner, type)");
-            }
-            stream = getStreamByIds(ids);
+            source = null;
             usedStreamGenerator = "ids";
         } else if (hasSharedWithFilter && !hasBasicFilters) {
-            stream = getStreamBySharedWith(sharedWith);
+            source = getSourceBySharedWith(sharedWith);
             usedStreamGenerator = "sharedWith";
         } else if (hasSharedByFilter && !hasBasicFilters) {
-            stream = getStreamBySharedBy(sharedBy);
+            source = getSourceBySharedBy(sharedBy);
             usedStreamGenerator = "sharedBy";
         } else {
-            stream = getStreamByBasicFilters(name, uri, owner, type, exactName);
+            source = getSourceByBasicFilters(name, uri, owner, type, exactName);
             usedStreamGenerator = "basic";
         }
 
+        // Filters that the chosen source can not apply, these are evaluated for a chunk of resources at once
+        UnaryOperator<List<Resource>> postFilter = null;
+
         if (hasSharedByFilter && !usedStreamGenerator.equals("sharedBy")) {
-            String finalSharedBy = sharedBy;
-            stream = stream.filter(resource -> isSharedBy(resource, finalSharedBy));
+            UserModel sharedByUser = userProvider.getUserById(realm, sharedBy);
+            if (sharedByUser == null) {
+                return Stream.empty();
+            }
+            postFilter = resources -> retainShared(resources, sharedResourceFinder::filterSharedByUser, sharedByUser);
         }
 
         if (hasSharedWithFilter && !usedStreamGenerator.equals("sharedWith")) {
-            stream = stream.filter(resource -> isSharedWith(resource, sharedWith));
+            UserModel sharedWithUser = userProvider.getUserById(realm, sharedWith);
+            if (sharedWithUser == null) {
+                return Stream.empty();
+            }
+            UnaryOperator<List<Resource>> sharedWithFilter = resources -> retainShared(resources, sharedResourceFinder::filterSharedWithUser, sharedWithUser);
+            postFilter = postFilter == null ? sharedWithFilter : and(postFilter, sharedWithFilter);
+        }
+
+        if (hasIdFilter) {
+            Stream<Resource> stream = getStreamByIds(ids, keyset, afterId);
+            return filterInChunks(stream, postFilter).skip(firstResult).limit(maxResults);
+        }
+
+        if (keyset) {
+            return filterInChunks(source.after().apply(afterId), postFilter).limit(maxResults);
+        }
+
+        if (postFilter == null) {
+            // The store can apply the window itself, so deep pages do not read the skipped resources
+            return source.pages().apply(firstResult, maxResults).filter(Objects::nonNull).limit(maxResults);
         }
 
-        return ResultWindow.limitStream(stream, firstResult, maxResults);
+        UnaryOperator<List<Resource>> chunkFilter = postFilter;
+        return AdaptiveChunkedStream.of(
+                        // The vanished resources are kept until the chunk is filtered, so a chunk keeps the size of the raw page
+                        (first, max) -> source.pages().apply(first, max).toList(),
+                        chunk -> chunkFilter.apply(chunk.stream().filter(Objects::nonNull).toList()),
+                        firstResult + maxResults,
+                        CHUNK_SIZE,
+                        MAX_CHUNK_SIZE
+                )
+                .skip(firstResult)
+                .limit(maxResults);
     }
 
-    protected Stream<Resource> getStreamByBasicFilters(String name, String uri, String owner, String type, Boolean exactName) {
+    /**
+     * Counts the resources {@link #findResources} would return without a window, without loading any resource.
+     * The share filters are resolved from the shared resource index, which may still hold resources that were deleted
+     * in the meantime, so the count queries are always restricted to the shared resources instead of counting the index.
+     */
+    public long countResources(
+            List<String> ids,
+            String sharedWith,
+            String name,
+            String uri,
+            String owner,
+            String type,
+            Boolean exactName,
+            Boolean sharedOnly
+    ) {
+        boolean hasIdFilter = ids != null && !ids.isEmpty();
+        boolean hasOwnerFilter = owner != null && !owner.trim().isEmpty();
+        boolean hasBasicFiltersWithoutOwner = (name != null && !name.trim().isEmpty())
+                || (uri != null && !uri.trim().isEmpty())
+                || (type != null && !type.trim().isEmpty());
+        boolean hasBasicFilters = hasBasicFiltersWithoutOwner || hasOwnerFilter;
+
+        String sharedBy = null;
+        if (sharedOnly != null && sharedOnly) {
+            if (!hasOwnerFilter) {
+                throw new BadRequestException("When requesting only shared resources, you must provide the owner filter");
+            }
+
+            sharedBy = owner;
+            if (!hasBasicFiltersWithoutOwner) {
+                owner = null;
+                hasBasicFilters = false;
+            }
+        }
+
+        if (hasIdFilter && hasBasicFilters) {
+            throw new BadRequestException("When requesting a set of ids, you can not define any of the basic filters (name, uri, owner, type)");
+        }
+
+        // The resources the share filters allow, null if there is no share filter
+        Set<String> sharedIds = null;
+
+        if (sharedBy != null) {
+            UserModel sharedByUser = userProvider.getUserById(realm, sharedBy);
+            if (sharedByUser == null) {
+                return 0;
+            }
+            sharedIds = sharedResourceFinder.getAllSharedByUser(resourceServer, sharedByUser);
+        }
+
+        if (sharedWith != null) {
+            UserModel sharedWithUser = userProvider.getUserById(realm, sharedWith);
+            if (sharedWithUser == null) {
+                return 0;
+            }
+            Set<String> sharedWithIds = sharedResourceFinder.getAllSharedWithUser(resourceServer, sharedWithUser);
+            if (sharedIds == null) {
+                sharedIds = sharedWithIds;
+            } else {
+                sharedIds.retainAll(sharedWithIds);
+            }
+        }
+
+        Collection<String> restrictedIds = sharedIds;
+        if (hasIdFilter) {
+            Set<String> allowedIds = sharedIds;
+            restrictedIds = ids.stream().distinct().filter(id -> allowedIds == null || allowedIds.contains(id)).toList();
+        }
+
+        Map<Resource.FilterOption, String[]> search = hasBasicFilters
+                ? getBasicSearch(name, uri, owner, type, exactName)
+                : new EnumMap<>(Resource.FilterOption.class);
+
+        if (restrictedIds == null) {
+            return localResourceIdQuery.count(search);
+        }
+
+        return ChunkedStream.chunk(restrictedIds.stream(), MAX_CHUNK_SIZE)
+                .mapToLong(chunk -> {
+                    Map<Resource.FilterOption, String[]> chunkSearch = new EnumMap<>(search);
+                    chunkSearch.put(Resource.FilterOption.ID, chunk.toArray(String[]::new));
+                    return localResourceIdQuery.count(chunkSearch);
+                })
+                .sum();
+    }
+
+    protected ResourceSource getSourceByBasicFilters(String name, String uri, String owner, String type, Boolean exactName) {
+        Map<Resource.FilterOption, String[]> search = getBasicSearch(name, uri, owner, type, exactName);
+
+        return new ResourceSource(
+                (first, max) -> resourceStore.find(resourceServer, search, first, max).stream(),
+                afterId -> getKeysetStreamIterator(afterId, (after, max) -> localResourceIdQuery.findIds(search, after, max))
+        );
+    }
+
+    /**
+     * Translates the basic filters into the search of the {@link ResourceStore}
+     */
+    protected Map<Resource.FilterOption, String[]> getBasicSearch(String name, String uri, String owner, String type, Boolean exactName) {
         Map<Resource.FilterOption, String[]> search = new EnumMap<>(Resource.FilterOption.class);
 
         if (name != null && !name.trim().isEmpty()) {
@@ -130,55 +313,97 @@ public class ResourceFinder {
             search.put(Resource.FilterOption.TYPE, new String[]{type});
         }
 
-        return getChunkedStreamIterator((first, max)
-                -> resourceStore.find(resourceServer, search, first, max).stream());
+        return search;
+    }
+
+    protected Stream<Resource> getStreamByIds(List<String> ids, boolean keyset, String afterId) {
+        if (keyset && afterId != null) {
+            int position = ids.indexOf(afterId);
+            if (position < 0) {
+                throw new BadRequestException("The cursor does not match the requested ids");
+            }
+            ids = ids.subList(position + 1, ids.size());
+        }
+
+        return bulkResourceLoader.loadByIds(ids).stream();
     }
 
-    protected Stream<Resource> getStreamByIds(List<String> ids) {
-        return ids.stream().map(id -> resourceStore.findById(resourceServer, id)).distinct().filter(Objects::nonNull);
+    /**
+     * Returns the requested ids that did not match any resource, once the resources were requested by ids
+     */
+    public List<String> getMissingIds() {
+        return bulkResourceLoader.getMissingIds();
     }
 
-    protected Stream<Resource> getStreamBySharedWith(String sharedWith) {
+    protected ResourceSource getSourceBySharedWith(String sharedWith) {
         UserModel sharedWithUser = userProvider.getUserById(realm, sharedWith);
         if (sharedWithUser == null) {
-            return Stream.empty();
+            return ResourceSource.EMPTY;
         }
 
-        return getChunkedStreamIterator((first, max)
-                -> sharedResourceFinder.getSharedWithUser(resourceServer, sharedWithUser, first, max)
-                .map(resourceId -> resourceStore.findById(resourceServer, resourceId))
+        return new ResourceSource(
+                (first, max) -> sharedResourceFinder.getSharedWithUser(resourceServer, sharedWithUser, first, max)
+                        .map(resourceId -> resourceStore.findById(resourceServer, resourceId)),
+                afterId -> getKeysetStreamIterator(afterId, (after, max) -> sharedResourceFinder.getSharedWithUserAfter(resourceServer, sharedWithUser, after, max))
         );
     }
 
-    protected Stream<Resource> getStreamBySharedBy(String sharedBy) {
+    protected ResourceSource getSourceBySharedBy(String sharedBy) {
         UserModel sharedByUser = userProvider.getUserById(realm, sharedBy);
         if (sharedByUser == null) {
-            return Stream.empty();
+            return ResourceSource.EMPTY;
         }
 
-        return getChunkedStreamIterator((first, max) -> sharedResourceFinder.getSharedByUser(resourceServer, sharedByUser, first, max)
-                .map(resourceId -> resourceStore.findById(resourceServer, resourceId))
-
+        return new ResourceSource(
+                (first, max) -> sharedResourceFinder.getSharedByUser(resourceServer, sharedByUser, first, max)
+                        .map(resourceId -> resourceStore.findById(resourceServer, resourceId)),
+                afterId -> getKeysetStreamIterator(afterId, (after, max) -> sharedResourceFinder.getSharedByUserAfter(resourceServer, sharedByUser, after, max))
         );
     }
 
-    protected Boolean isSharedWith(Resource resource, String sharedWith) {
-        return sharedResourceFinder.isSharedWithUser(userProvider.getUserById(realm, sharedWith), resource);
+    /**
+     * Keeps the resources that the share filter accepts, all resources of the chunk are checked at once
+     */
+    protected List<Resource> retainShared(List<Resource> resources, ShareFilter shareFilter, UserModel user) {
+        Set<String> sharedIds = shareFilter.filter(resourceServer, user, resources.stream().map(Resource::getId).toList());
+        return resources.stream().filter(resource -> sharedIds.contains(resource.getId())).toList();
+    }
+
+    private Stream<Resource> filterInChunks(Stream<Resource> stream, UnaryOperator<List<Resource>> filter) {
+        if (filter == null) {
+            return stream;
+        }
+
+        return ChunkedStream.chunk(stream, CHUNK_SIZE).flatMap(chunk -> filter.apply(chunk).stream());
+    }
+
+    private UnaryOperator<List<Resource>> and(UnaryOperator<List<Resource>> first, UnaryOperator<List<Resource>> second) {
+        return resources -> second.apply(first.apply(resources));
     }
 
-    protected Boolean isSharedBy(Resource resource, String sharedBy) {
-        return sharedResourceFinder.isSharedByUser(userProvider.getUserById(realm, sharedBy), resource);
+    protected Stream<Resource> getKeysetStreamIterator(
+            String afterId,
+            BiFunction<String, Integer, List<String>> idSupplier
+    ) {
+        return KeysetStream.of(afterId, CHUNK_SIZE, idSupplier, id -> id)
+                .map(id -> resourceStore.findById(resourceServer, id))
+                .filter(Objects::nonNull);
     }
 
-    protected Stream<Resource> getChunkedStreamIterator(
-            BiFunction<Integer, Integer, Stream<Resource>> streamSupplier
+    /**
+     * A source of resources, that can either be read by offset or by keyset
+     * @param pages Returns at most "max" resources, starting at the offset "first". A resource that vanished after its id was
+     *              read is returned as null, so only the last page is ever shorter than requested
+     * @param after Returns all resources after the given id (null for the first one), ordered by id
+     */
+    protected record ResourceSource(
+            BiFunction<Integer, Integer, Stream<Resource>> pages,
+            Function<String, Stream<Resource>> after
     ) {
-        final int CHUNK_SIZE = 100;
+        static final ResourceSource EMPTY = new ResourceSource((first, max) -> Stream.empty(), afterId -> Stream.empty());
+    }
 
-        return Stream.iterate(0, offset -> offset + CHUNK_SIZE)
-                .map(offset -> streamSupplier.apply(offset, CHUNK_SIZE)
-                        .collect(Collectors.toList()))
-                .takeWhile(chunk -> !chunk.isEmpty())
-                .flatMap(Collection::stream);
+    protected interface ShareFilter {
+        Set<String> filter(ResourceServer resourceServer, UserModel user, Collection<String> resourceIds);
     }
 }
@@ -2,6 +2,8 @@ package com.hawk.keycloak.resources.lookup;
 
 import com.hawk.keycloak.resources.model.UserResourcePermission;
 import com.hawk.keycloak.resources.model.UserResourcePermissionList;
+import com.hawk.keycloak.util.ChunkedStream;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.authorization.model.PermissionTicket;
 import org.keycloak.authorization.model.ResourceServer;
@@ -11,7 +13,11 @@ import java.util.*;
 
 @RequiredArgsConstructor
 public class ResourceUserFinder {
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
     protected final PermissionTicketStore ticketStore;
+    protected final EntityManager em;
 
     public Collection<UserResourcePermission> getUsersOfResource(org.keycloak.authorization.model.Resource resource) {
         Map<PermissionTicket.FilterOption, String> filters = new EnumMap<>(PermissionTicket.FilterOption.class);
@@ -22,7 +28,15 @@ public class ResourceUserFinder {
         filters.put(PermissionTicket.FilterOption.GRANTED, Boolean.TRUE.toString());
         filters.put(PermissionTicket.FilterOption.RESOURCE_ID, resource.getId());
 
-        Collection<UserResourcePermissionList> resources = toPermissions(ticketStore.find(resourceServer, filters, null, null));
+        List<TicketRow> tickets = ticketStore.find(resourceServer, filters, null, null).stream()
+                .map(ticket -> new TicketRow(
+                        ticket.getResource().getId(),
+                        ticket.getRequester(),
+                        ticket.getScope() != null ? ticket.getScope().getName() : null
+                ))
+                .toList();
+
+        Collection<UserResourcePermissionList> resources = toPermissions(tickets).values();
         Collection<UserResourcePermission> permissions = Collections.EMPTY_LIST;
 
         if (!resources.isEmpty()) {
@@ -32,24 +46,67 @@ public class ResourceUserFinder {
         return permissions;
     }
 
-    private Collection<UserResourcePermissionList> toPermissions(List<PermissionTicket> tickets) {
+    /**
+     * Same as {@link #getUsersOfResource}, for many resources at once. The ticket store can only filter by a single
+     * resource, so the granted tickets are queried directly, with one query per chunk of resources.
+     *
+     * @return The users of every existing resource, in the order of the given ids. Unknown ids are skipped
+     */
+    public Map<String, Collection<UserResourcePermission>> getUsersOfResources(ResourceServer resourceServer, List<String> resourceIds) {
+        Set<String> existingIds = new HashSet<>();
+        List<TicketRow> tickets = new ArrayList<>();
+
+        ChunkedStream.chunk(resourceIds.stream().distinct(), MAX_IDS_PER_QUERY).forEach(chunk ->
+                // Resources without granted tickets are returned as well (without a requester), to tell them from unknown ids
+                em.createQuery("select r.id, t.requester, s.name from ResourceEntity r"
+                                + " left join PermissionTicketEntity t on t.resource = r and t.owner = r.owner and t.grantedTimestamp is not null"
+                                + " left join t.scope s"
+                                + " where r.resourceServer = :serverId and r.id in :ids", Object[].class)
+                        .setParameter("serverId", resourceServer.getId())
+                        .setParameter("ids", chunk)
+                        .getResultStream()
+                        .forEach(row -> {
+                            existingIds.add((String) row[0]);
+                            if (row[1] != null) {
+                                tickets.add(new TicketRow((String) row[0], (String) row[1], (String) row[2]));
+                            }
+                        })
+        );
+
+        Map<String, UserResourcePermissionList> permissions = toPermissions(tickets);
+        Map<String, Collection<UserResourcePermission>> usersOfResources = new LinkedHashMap<>();
+
+        for (String resourceId : resourceIds) {
+            if (existingIds.contains(resourceId)) {
+                UserResourcePermissionList resource = permissions.get(resourceId);
+                usersOfResources.put(resourceId, resource != null ? resource.getPermissions() : List.of());
+            }
+        }
+
+        return usersOfResources;
+    }
+
+    private Map<String, UserResourcePermissionList> toPermissions(List<TicketRow> tickets) {
         Map<String, UserResourcePermissionList> permissions = new HashMap<>();
 
-        for (PermissionTicket ticket : tickets) {
+        for (TicketRow ticket : tickets) {
             UserResourcePermissionList resource = permissions
-                    .computeIfAbsent(ticket.getResource().getId(), s -> new UserResourcePermissionList());
+                    .computeIfAbsent(ticket.resourceId(), s -> new UserResourcePermissionList());
 
-            UserResourcePermission user = resource.getPermission(ticket.getRequester());
+            UserResourcePermission user = resource.getPermission(ticket.requester());
 
             if (user == null) {
-                resource.addPermission(ticket.getRequester(), user = new UserResourcePermission(ticket.getRequester()));
+                resource.addPermission(ticket.requester(), user = new UserResourcePermission(ticket.requester()));
             }
 
-            if(ticket.getScope() != null){
-                user.addScope(ticket.getScope().getName());
+            if(ticket.scopeName() != null){
+                user.addScope(ticket.scopeName());
             }
         }
 
-        return permissions.values();
+        return permissions;
+    }
+
+    private record TicketRow(String resourceId, String requester, String scopeName) {
     }
 }
@@ -1,81 +1,64 @@
 package com.hawk.keycloak.resources.lookup;
 
-import com.hawk.keycloak.util.ResultWindow;
+import com.hawk.keycloak.resources.shares.ResourceServerShares;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
 import lombok.RequiredArgsConstructor;
-import org.keycloak.authorization.model.PermissionTicket;
-import org.keycloak.authorization.model.Resource;
 import org.keycloak.authorization.model.ResourceServer;
-import org.keycloak.authorization.store.PermissionTicketStore;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
 
-import java.util.*;
-import java.util.function.Function;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.stream.Stream;
 
+/**
+ * Finds the resources shared with or by a user, ordered by id, from the {@link SharedResourceIndex}
+ */
 @RequiredArgsConstructor
 public class SharedResourceFinder {
-    private final PermissionTicketStore ticketStore;
+    private final SharedResourceIndex sharedResourceIndex;
+    private final KeycloakSession session;
 
     public Stream<String> getSharedWithUser(ResourceServer resourceServer, UserModel user, Integer first, Integer max) {
-        return toPermissions(
-                resourceServer,
-                ticketStore.findGrantedResources(
-                        user.getId(),
-                        null,
-                        ResultWindow.limitFirst(first),
-                        ResultWindow.limitMax(max)
-                ),
-                resource -> ticketStore.findGranted(
-                        resource.getResourceServer(),
-                        resource.getName(),
-                        user.getId()
-                )
-        );
+        return getShares(resourceServer).getSharedWith(user.getId(), first, max).stream();
     }
 
-    public Stream<String> getSharedByUser(ResourceServer resourceServer, UserModel user, Integer first, Integer max) {
-        return toPermissions(
-                resourceServer,
-                ticketStore.findGrantedOwnerResources(
-                        user.getId(),
-                        ResultWindow.limitFirst(first),
-                        ResultWindow.limitMax(max)
-                ),
-                resource -> {
-                    Map<PermissionTicket.FilterOption, String> filters = new EnumMap<>(PermissionTicket.FilterOption.class);
+    public List<String> getSharedWithUserAfter(ResourceServer resourceServer, UserModel user, String afterId, int max) {
+        return getShares(resourceServer).getSharedWithAfter(user.getId(), afterId, max);
+    }
 
-                    filters.put(PermissionTicket.FilterOption.OWNER, user.getId());
-                    filters.put(PermissionTicket.FilterOption.GRANTED, Boolean.TRUE.toString());
-                    filters.put(PermissionTicket.FilterOption.RESOURCE_ID, resource.getId());
+    public Stream<String> getSharedByUser(ResourceServer resourceServer, UserModel user, Integer first, Integer max) {
+        return getShares(resourceServer).getSharedBy(user.getId(), first, max).stream();
+    }
 
-                    return ticketStore.find(resource.getResourceServer(), filters, null, null);
-                }
-        );
+    public List<String> getSharedByUserAfter(ResourceServer resourceServer, UserModel user, String afterId, int max) {
+        return getShares(resourceServer).getSharedByAfter(user.getId(), afterId, max);
     }
 
-    public boolean isSharedByUser(UserModel user, Resource resource) {
-        if (resource == null || user == null) {
-            return false;
-        }
+    public Set<String> getAllSharedWithUser(ResourceServer resourceServer, UserModel user) {
+        return getShares(resourceServer).getAllSharedWith(user.getId());
+    }
 
-        return ticketStore.findByResource(resource.getResourceServer(), resource)
-                .stream()
-                .anyMatch(t -> t.isGranted() && t.getOwner().equals(user.getId()));
+    public Set<String> getAllSharedByUser(ResourceServer resourceServer, UserModel user) {
+        return getShares(resourceServer).getAllSharedBy(user.getId());
     }
 
-    public boolean isSharedWithUser(UserModel user, Resource resource) {
-        if (resource == null || user == null) {
-            return false;
-        }
+    /**
+     * Returns those of the given resources, that have at least one permission granted to the user
+     */
+    public Set<String> filterSharedWithUser(ResourceServer resourceServer, UserModel user, Collection<String> resourceIds) {
+        return getShares(resourceServer).filterSharedWith(user.getId(), resourceIds);
+    }
 
-        return !ticketStore.findGranted(resource.getResourceServer(), resource.getName(), user.getId()).isEmpty();
+    /**
+     * Returns those of the given resources, that are owned by the user and have at least one permission granted
+     */
+    public Set<String> filterSharedByUser(ResourceServer resourceServer, UserModel user, Collection<String> resourceIds) {
+        return getShares(resourceServer).filterSharedBy(user.getId(), resourceIds);
     }
 
-    private Stream<String> toPermissions(ResourceServer resourceServer, List<Resource> resources, Function<Resource, List<PermissionTicket>> ticketFinder) {
-        return resources.stream()
-                .flatMap(resource -> ticketFinder.apply(resource).stream())
-                .filter(ticket -> ticket.getResourceServer().equals(resourceServer))
-                .map(ticket -> ticket.getResource().getId())
-                .distinct();
+    private ResourceServerShares getShares(ResourceServer resourceServer) {
+        return sharedResourceIndex.forResourceServer(session, session.getContext().getRealm(), resourceServer.getId());
     }
 }
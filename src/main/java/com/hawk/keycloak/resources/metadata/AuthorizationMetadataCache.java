@@ -0,0 +1,78 @@
+package com.hawk.keycloak.resources.metadata;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.util.BoundedCache;
+import com.hawk.keycloak.util.model.CacheStatistics;
+import org.keycloak.authorization.AuthorizationProvider;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.authorization.model.Scope;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Node-wide cache of the authorization metadata of a client, see {@link ResourceServerMetadata}.
+ * <p>
+ * Entries are versioned by the "authorization version" of the realm (see {@link RealmVersions}), which the
+ * {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} updates whenever a resource server, a scope or a client is changed.
+ * Because the version is shared by all nodes, a change seen by one node invalidates the entries on all nodes.
+ * Scopes that are created without an admin event (e.g. along with a resource of the protection API) are picked up by the
+ * {@link ScopeResolver}, which drops an entry as soon as it misses a scope.
+ */
+public class AuthorizationMetadataCache {
+    private final BoundedCache<Key, ResourceServerMetadata> cache;
+
+    public AuthorizationMetadataCache(int maxEntries) {
+        this.cache = new BoundedCache<>(maxEntries, Long.MAX_VALUE, ResourceServerMetadata::size);
+    }
+
+    public ResourceServerMetadata getMetadata(KeycloakSession session, RealmModel realm, ClientModel client) {
+        Key key = createKey(realm, client.getId());
+
+        ResourceServerMetadata metadata = cache.get(key);
+        if (metadata == null) {
+            metadata = loadMetadata(session, client);
+            cache.put(key, metadata);
+        }
+
+        return metadata;
+    }
+
+    public void invalidate(RealmModel realm, String clientId) {
+        cache.remove(createKey(realm, clientId));
+    }
+
+    public void invalidateRealm(String realmId) {
+        cache.removeIf(key -> key.realmId().equals(realmId));
+    }
+
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    private Key createKey(RealmModel realm, String clientId) {
+        String version = RealmVersions.get(realm, RealmVersions.Version.AUTHORIZATION);
+        return new Key(realm.getId(), version != null ? version : "", clientId);
+    }
+
+    private ResourceServerMetadata loadMetadata(KeycloakSession session, ClientModel client) {
+        AuthorizationProvider authorization = session.getProvider(AuthorizationProvider.class);
+        ResourceServer resourceServer = authorization.getStoreFactory().getResourceServerStore().findByClient(client);
+
+        if (resourceServer == null) {
+            return ResourceServerMetadata.NONE;
+        }
+
+        Map<String, String> scopeIdsByName = authorization.getStoreFactory().getScopeStore().findByResourceServer(resourceServer)
+                .stream()
+                .collect(Collectors.toMap(Scope::getName, Scope::getId));
+
+        return new ResourceServerMetadata(resourceServer.getId(), scopeIdsByName);
+    }
+
+    private record Key(String realmId, String version, String clientId) {
+    }
+}
@@ -0,0 +1,44 @@
+package com.hawk.keycloak.resources.metadata;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The resource server of a client and the ids of its scopes. Only ids are kept, the models are bound to a session
+ * and are resolved per request (from the authorization cache) by their id.
+ */
+public class ResourceServerMetadata {
+    public static final ResourceServerMetadata NONE = new ResourceServerMetadata(null, Map.of());
+
+    private final String resourceServerId;
+    private final Map<String, String> scopeIdsByName;
+    private final Set<String> scopeIds;
+
+    ResourceServerMetadata(String resourceServerId, Map<String, String> scopeIdsByName) {
+        this.resourceServerId = resourceServerId;
+        this.scopeIdsByName = Map.copyOf(scopeIdsByName);
+        this.scopeIds = Set.copyOf(scopeIdsByName.values());
+    }
+
+    /**
+     * Returns null, if the client has no authorization services enabled
+     */
+    public String getResourceServerId() {
+        return resourceServerId;
+    }
+
+    /**
+     * Resolves a scope by its name first and by its id second, like the scope parameters of the routes do
+     */
+    public String findScopeId(String nameOrId) {
+        String scopeId = scopeIdsByName.get(nameOrId);
+        if (scopeId == null && scopeIds.contains(nameOrId)) {
+            scopeId = nameOrId;
+        }
+        return scopeId;
+    }
+
+    long size() {
+        return scopeIdsByName.size() + 1;
+    }
+}
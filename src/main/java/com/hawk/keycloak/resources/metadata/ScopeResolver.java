@@ -0,0 +1,43 @@
+package com.hawk.keycloak.resources.metadata;
+
+import lombok.RequiredArgsConstructor;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.authorization.model.Scope;
+import org.keycloak.authorization.store.ScopeStore;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Resolves the scopes of a resource server by name or id, using the cached {@link ResourceServerMetadata}.
+ * Only if the metadata does not know the scope (any more), the store is searched by name and id,
+ * and a found scope drops the outdated metadata.
+ */
+@RequiredArgsConstructor
+public class ScopeResolver {
+    private final AuthorizationMetadataCache metadataCache;
+    private final ResourceServerMetadata metadata;
+    private final RealmModel realm;
+    private final String clientId;
+    private final ScopeStore scopeStore;
+    private final ResourceServer resourceServer;
+
+    public Scope getScope(String nameOrId) {
+        String scopeId = metadata.findScopeId(nameOrId);
+        if (scopeId != null) {
+            Scope scope = scopeStore.findById(resourceServer, scopeId);
+            if (scope != null) {
+                return scope;
+            }
+        }
+
+        Scope scope = scopeStore.findByName(resourceServer, nameOrId);
+        if (scope == null) {
+            scope = scopeStore.findById(resourceServer, nameOrId);
+        }
+
+        if (scope != null || scopeId != null) {
+            metadataCache.invalidate(realm, clientId);
+        }
+
+        return scope;
+    }
+}
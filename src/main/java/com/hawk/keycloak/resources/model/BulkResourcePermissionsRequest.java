@@ -0,0 +1,12 @@
+package com.hawk.keycloak.resources.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class BulkResourcePermissionsRequest {
+    private List<ResourcePermissionAssignment> assignments;
+}
@@ -0,0 +1,16 @@
+package com.hawk.keycloak.resources.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Can the user access the resource with the scope (with any scope, if no scope is given)?
+ * The scope is either the name or the id of a scope.
+ */
+@Getter
+@Setter
+public class ResourceDecisionQuery {
+    private String user;
+    private String resource;
+    private String scope;
+}
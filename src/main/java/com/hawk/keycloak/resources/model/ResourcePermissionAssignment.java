@@ -0,0 +1,17 @@
+package com.hawk.keycloak.resources.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * The desired permissions of a user on a resource, the same as {@link UserResourcePermissionsRequest}
+ */
+@Getter
+@Setter
+public class ResourcePermissionAssignment {
+    private String resource;
+    private String user;
+    private List<String> scopes;
+}
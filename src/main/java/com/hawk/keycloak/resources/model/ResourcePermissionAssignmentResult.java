@@ -0,0 +1,23 @@
+package com.hawk.keycloak.resources.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ResourcePermissionAssignmentResult {
+    public enum Status {
+        UNCHANGED, UPDATED, FAILED
+    }
+
+    final private String resource;
+    final private String user;
+    final private Status status;
+    final private String error;
+
+    public static ResourcePermissionAssignmentResult failed(ResourcePermissionAssignment assignment, String error) {
+        return new ResourcePermissionAssignmentResult(assignment.getResource(), assignment.getUser(), Status.FAILED, error);
+    }
+}
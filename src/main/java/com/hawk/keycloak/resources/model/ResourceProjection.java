@@ -0,0 +1,83 @@
+package com.hawk.keycloak.resources.model;
+
+import jakarta.ws.rs.BadRequestException;
+import org.keycloak.authorization.model.Resource;
+import org.keycloak.authorization.model.Scope;
+
+import java.util.*;
+
+/**
+ * The fields of a resource a client requested with the "view" and "fields" parameters.
+ * Unlike the full representation, a projection is rendered from the resource model only. The owner is returned as id
+ * ("ownerId") and the scopes by name ("scopeNames"). These keys differ from the ones of the full representation ("owner",
+ * "resource_scopes"), which hold objects, so a client never mistakes one shape for the other. All other fields match.
+ */
+public class ResourceProjection {
+    public static final String VIEW_FULL = "full";
+    public static final String VIEW_COMPACT = "compact";
+
+    private static final List<String> FIELDS = List.of(
+            "_id", "name", "displayName", "type", "ownerId", "ownerManagedAccess", "uris", "scopeNames", "icon_uri", "attributes"
+    );
+    private static final List<String> COMPACT_FIELDS = List.of("_id", "name", "type", "ownerId", "scopeNames");
+
+    private final List<String> fields;
+
+    private ResourceProjection(List<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Returns null, if the full representation was requested
+     */
+    public static ResourceProjection fromRequest(String view, List<String> fields) {
+        List<String> requestedFields = fields == null ? List.of() : fields.stream()
+                .filter(field -> !field.isBlank())
+                .distinct()
+                .toList();
+
+        for (String field : requestedFields) {
+            if (!FIELDS.contains(field)) {
+                throw new BadRequestException("Unknown field: " + field + ", supported fields are: " + String.join(",", FIELDS));
+            }
+        }
+
+        if (!requestedFields.isEmpty()) {
+            return new ResourceProjection(requestedFields);
+        }
+
+        if (view == null || view.isBlank() || view.equals(VIEW_FULL)) {
+            return null;
+        }
+        if (view.equals(VIEW_COMPACT)) {
+            return new ResourceProjection(COMPACT_FIELDS);
+        }
+
+        throw new BadRequestException("Unknown view: " + view + ", supported views are: " + VIEW_FULL + "," + VIEW_COMPACT);
+    }
+
+    public boolean needsScopes() {
+        return fields.contains("scopeNames");
+    }
+
+    public Map<String, Object> render(Resource resource) {
+        Map<String, Object> rendered = new LinkedHashMap<>();
+
+        for (String field : fields) {
+            switch (field) {
+                case "_id" -> rendered.put(field, resource.getId());
+                case "name" -> rendered.put(field, resource.getName());
+                case "displayName" -> rendered.put(field, resource.getDisplayName());
+                case "type" -> rendered.put(field, resource.getType());
+                case "ownerId" -> rendered.put(field, resource.getOwner());
+                case "ownerManagedAccess" -> rendered.put(field, resource.isOwnerManagedAccess());
+                case "uris" -> rendered.put(field, resource.getUris());
+                case "scopeNames" -> rendered.put(field, resource.getScopes().stream().map(Scope::getName).toList());
+                case "icon_uri" -> rendered.put(field, resource.getIconUri());
+                case "attributes" -> rendered.put(field, resource.getAttributes());
+            }
+        }
+
+        return rendered;
+    }
+}
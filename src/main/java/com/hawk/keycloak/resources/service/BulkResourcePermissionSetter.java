@@ -0,0 +1,282 @@
+package com.hawk.keycloak.resources.service;
+
+import com.hawk.keycloak.resources.lookup.BulkResourceLoader;
+import com.hawk.keycloak.resources.metadata.ScopeResolver;
+import com.hawk.keycloak.resources.model.ResourcePermissionAssignment;
+import com.hawk.keycloak.resources.model.ResourcePermissionAssignmentResult;
+import com.hawk.keycloak.resources.shares.ShareChange;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
+import com.hawk.keycloak.users.lookup.BulkUserLoader;
+import com.hawk.keycloak.util.ChunkedStream;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.authorization.jpa.entities.PermissionTicketEntity;
+import org.keycloak.authorization.model.PermissionTicket;
+import org.keycloak.authorization.model.Resource;
+import org.keycloak.authorization.model.ResourceServer;
+import org.keycloak.authorization.model.Scope;
+import org.keycloak.authorization.store.PermissionTicketStore;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Sets the permissions of many users on many resources at once, with the same semantics as {@link ResourcePermissionSetter}:
+ * the requested scopes are granted, all other permissions of the user on the resource are removed.
+ * <p>
+ * Instead of looking up the tickets of every assignment, all tickets of the affected resources are loaded
+ * with one query per chunk of resources and diffed in memory against the desired state. Only the difference is written,
+ * flushed in batches. After every batch the tickets of the batch are detached, so the persistence context does not grow
+ * with the number of writes. Everything else (e.g. the realm) stays managed, so later changes in the request are not lost.
+ * Invalid assignments are reported in the results, without affecting the others.
+ * A single admin event is emitted for all changed assignments.
+ * <p>
+ * A ticket is only detached once its assignment was applied, afterward only the state captured up to then is read.
+ */
+@RequiredArgsConstructor
+public class BulkResourcePermissionSetter {
+    /** The maximum number of assignments per request, the tickets of all their resources are held in memory */
+    public static final int MAX_ASSIGNMENTS = 1000;
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    private static final int MAX_IDS_PER_QUERY = 1000;
+    private static final int FLUSH_EVERY = 500;
+
+    private final EntityManager em;
+    private final PermissionTicketStore ticketStore;
+    private final ResourceServer resourceServer;
+    private final ScopeResolver scopeResolver;
+    private final BulkResourceLoader resourceLoader;
+    private final BulkUserLoader userLoader;
+    private final AdminEventBuilder adminEvent;
+    private final KeycloakUriInfo uri;
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final SharedResourceIndex sharedResourceIndex;
+
+    public List<ResourcePermissionAssignmentResult> setPermissions(List<ResourcePermissionAssignment> assignments) {
+        Map<String, Resource> resources = resourceLoader.loadByIds(assignments.stream().map(ResourcePermissionAssignment::getResource).filter(Objects::nonNull).toList())
+                .stream()
+                .collect(Collectors.toMap(Resource::getId, Function.identity()));
+        Set<String> users = userLoader.loadByIds(assignments.stream().map(ResourcePermissionAssignment::getUser).filter(Objects::nonNull).distinct().toArray(String[]::new))
+                .map(UserModel::getId)
+                .collect(Collectors.toSet());
+        Map<String, Scope> scopes = new HashMap<>();
+        Map<TicketKey, List<PermissionTicketEntity>> tickets = loadTickets(resources.keySet());
+
+        ResourcePermissionAssignmentResult[] results = new ResourcePermissionAssignmentResult[assignments.size()];
+        List<PlannedAssignment> planned = new ArrayList<>();
+        Set<TicketKey> assigned = new HashSet<>();
+
+        for (int i = 0; i < assignments.size(); i++) {
+            ResourcePermissionAssignment assignment = assignments.get(i);
+            Resource resource = resources.get(assignment.getResource());
+            List<String> scopeNames = assignment.getScopes() == null ? List.of() : assignment.getScopes().stream().distinct().toList();
+            String error = validate(assignment, resource, users, scopeNames, scopes);
+
+            if (error == null && !assigned.add(new TicketKey(resource.getId(), assignment.getUser()))) {
+                error = "The permissions of the user on the resource were already set by a previous assignment";
+            }
+
+            if (error != null) {
+                results[i] = ResourcePermissionAssignmentResult.failed(assignment, error);
+                continue;
+            }
+
+            planned.add(new PlannedAssignment(
+                    i,
+                    resource,
+                    resource.getId(),
+                    resource.getOwner(),
+                    assignment.getUser(),
+                    scopeNames,
+                    scopeNames.stream().map(scopes::get).toList(),
+                    tickets.getOrDefault(new TicketKey(resource.getId(), assignment.getUser()), List.of())
+            ));
+        }
+
+        List<ShareChange> changes = new ArrayList<>();
+        List<Map<String, Object>> changedAssignments = new ArrayList<>();
+        WriteBatch batch = new WriteBatch();
+
+        for (PlannedAssignment assignment : planned) {
+            boolean changed = apply(assignment, batch);
+
+            if (changed) {
+                changes.add(new ShareChange(assignment.resourceId(), assignment.ownerId(), assignment.userId(), !assignment.scopeNames().isEmpty()));
+                changedAssignments.add(Map.of("userId", assignment.userId(), "resourceId", assignment.resourceId(), "scopes", assignment.scopeNames()));
+            }
+
+            results[assignment.position()] = new ResourcePermissionAssignmentResult(
+                    assignment.resourceId(),
+                    assignment.userId(),
+                    changed ? ResourcePermissionAssignmentResult.Status.UPDATED : ResourcePermissionAssignmentResult.Status.UNCHANGED,
+                    null
+            );
+        }
+
+        if (!changes.isEmpty()) {
+            flush(batch);
+            sharedResourceIndex.recordChanges(session, realm, resourceServer.getId(), changes);
+
+            adminEvent.operation(OperationType.UPDATE)
+                    .resourcePath(uri)
+                    .representation(Map.of("assignments", changedAssignments))
+                    .success();
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private String validate(ResourcePermissionAssignment assignment, Resource resource, Set<String> users, List<String> scopeNames, Map<String, Scope> scopes) {
+        if (resource == null) {
+            return "Resource not found";
+        }
+        if (assignment.getUser() == null || !users.contains(assignment.getUser())) {
+            return "User not found";
+        }
+        if (assignment.getUser().equals(resource.getOwner())) {
+            return "Owner cannot have permissions on their own resource";
+        }
+
+        List<String> knownScopesOfResource = resource.getScopes().stream().map(Scope::getName).toList();
+        for (String scope : scopeNames) {
+            if (!knownScopesOfResource.contains(scope)) {
+                return "The scope \"" + scope + "\" is not allowed for the resource";
+            }
+            if (scopes.computeIfAbsent(scope, scopeResolver::getScope) == null) {
+                return "The scope \"" + scope + "\" does not exist";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Brings the tickets of the user on the resource to the desired state. Only the loaded state of the tickets is read,
+     * all writes go through the store by id
+     * @return True if anything was changed
+     */
+    private boolean apply(PlannedAssignment assignment, WriteBatch batch) {
+        Set<String> missingScopeIds = assignment.scopes().stream().map(Scope::getId).collect(Collectors.toCollection(HashSet::new));
+        boolean changed = false;
+
+        for (PermissionTicketEntity ticket : assignment.tickets()) {
+            if (ticket.getScope() != null && missingScopeIds.remove(ticket.getScope().getId())) {
+                if (ticket.getGrantedTimestamp() == null) {
+                    // Goes through the store, so the cached ticket is invalidated
+                    PermissionTicket model = ticketStore.findById(resourceServer, ticket.getId());
+                    model.setGrantedTimestamp(System.currentTimeMillis());
+                    changed = true;
+                    batch.loaded.add(ticket);
+                    flushIfNeeded(batch);
+                } else {
+                    batch.loaded.add(ticket);
+                }
+                continue;
+            }
+
+            // Not within the requested permissions, removed from the persistence context with the flush
+            ticketStore.delete(ticket.getId());
+            changed = true;
+            flushIfNeeded(batch);
+        }
+
+        for (Scope scope : assignment.scopes()) {
+            if (missingScopeIds.contains(scope.getId())) {
+                PermissionTicket ticket = ticketStore.create(resourceServer, assignment.resource(), scope, assignment.userId());
+                ticket.setGrantedTimestamp(System.currentTimeMillis());
+                changed = true;
+                batch.createdIds.add(ticket.getId());
+                flushIfNeeded(batch);
+            }
+        }
+
+        return changed;
+    }
+
+    private void flushIfNeeded(WriteBatch batch) {
+        if (++batch.writes % FLUSH_EVERY == 0) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * Flushes the writes and detaches the tickets of the batch, not em.clear(), which would detach the entities
+     * of everything else in the request as well
+     */
+    private void flush(WriteBatch batch) {
+        em.flush();
+
+        for (PermissionTicketEntity ticket : batch.loaded) {
+            if (em.contains(ticket)) {
+                em.detach(ticket);
+            }
+        }
+        for (String ticketId : batch.createdIds) {
+            // Served by the persistence context, the ticket was persisted in this transaction
+            PermissionTicketEntity ticket = em.find(PermissionTicketEntity.class, ticketId);
+            if (ticket != null) {
+                em.detach(ticket);
+            }
+        }
+
+        batch.loaded.clear();
+        batch.createdIds.clear();
+    }
+
+    /**
+     * Loads all tickets of the given resources into the persistence context, so they can be updated or deleted
+     * through the store without another round trip
+     */
+    private Map<TicketKey, List<PermissionTicketEntity>> loadTickets(Collection<String> resourceIds) {
+        Map<TicketKey, List<PermissionTicketEntity>> tickets = new HashMap<>();
+
+        ChunkedStream.chunk(resourceIds.stream(), MAX_IDS_PER_QUERY).forEach(chunk ->
+                em.createQuery("select t from PermissionTicketEntity t left join fetch t.scope"
+                                + " where t.resourceServer.id = :serverId and t.resource.id in :ids", PermissionTicketEntity.class)
+                        .setParameter("serverId", resourceServer.getId())
+                        .setParameter("ids", chunk)
+                        .getResultStream()
+                        .forEach(ticket -> tickets
+                                .computeIfAbsent(new TicketKey(ticket.getResource().getId(), ticket.getRequester()), k -> new ArrayList<>())
+                                .add(ticket))
+        );
+
+        return tickets;
+    }
+
+    private record TicketKey(String resourceId, String userId) {
+    }
+
+    /**
+     * The tickets written or read since the last flush
+     */
+    private static class WriteBatch {
+        private int writes = 0;
+        private final List<PermissionTicketEntity> loaded = new ArrayList<>();
+        private final List<String> createdIds = new ArrayList<>();
+    }
+
+    /**
+     * A valid assignment, with everything its writes need
+     * @param position The position of the assignment in the request
+     */
+    private record PlannedAssignment(
+            int position,
+            Resource resource,
+            String resourceId,
+            String ownerId,
+            String userId,
+            List<String> scopeNames,
+            List<Scope> scopes,
+            List<PermissionTicketEntity> tickets
+    ) {
+    }
+}
@@ -1,5 +1,7 @@
 package com.hawk.keycloak.resources.service;
 
+import com.hawk.keycloak.resources.metadata.ScopeResolver;
+import com.hawk.keycloak.resources.shares.SharedResourceIndex;
 import jakarta.ws.rs.BadRequestException;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.authorization.model.PermissionTicket;
@@ -7,9 +9,10 @@ import org.keycloak.authorization.model.Resource;
 import org.keycloak.authorization.model.ResourceServer;
 import org.keycloak.authorization.model.Scope;
 import org.keycloak.authorization.store.PermissionTicketStore;
-import org.keycloak.authorization.store.ScopeStore;
 import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
 
@@ -19,9 +22,12 @@ import java.util.*;
 public class ResourcePermissionSetter {
     private final PermissionTicketStore ticketStore;
     private final ResourceServer resourceServer;
-    private final ScopeStore scopeStore;
+    private final ScopeResolver scopeResolver;
     private final AdminEventBuilder adminEvent;
     private final KeycloakUriInfo uri;
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final SharedResourceIndex sharedResourceIndex;
 
     public void setPermissions(
             UserModel user,
@@ -59,7 +65,7 @@ public class ResourcePermissionSetter {
 
             while (scopesIterator.hasNext()) {
                 String scopeName = scopesIterator.next();
-                org.keycloak.authorization.model.Scope scope = getScope(scopeName, resourceServer);
+                org.keycloak.authorization.model.Scope scope = scopeResolver.getScope(scopeName);
 
                 if(scope == null){
                     throw new BadRequestException("The scope \"" + scopeName + "\" does not exist");
@@ -100,6 +106,9 @@ public class ResourcePermissionSetter {
         }
 
         if(triggerEvent){
+            // All requested scopes are granted now, and all others were removed
+            sharedResourceIndex.recordChange(session, realm, resourceServer.getId(), resource.getId(), resource.getOwner(), user.getId(), !scopes.isEmpty());
+
             adminEvent.operation(OperationType.UPDATE)
                     .resourcePath(uri)
                     .representation(Map.of("userId", user.getId(), "resourceId", resource.getId(), "scopes", scopes))
@@ -115,18 +124,8 @@ public class ResourcePermissionSetter {
     }
 
     private void grantPermission(Resource resource, UserModel user, String scopeId) {
-        org.keycloak.authorization.model.Scope scope = getScope(scopeId, resourceServer);
+        org.keycloak.authorization.model.Scope scope = scopeResolver.getScope(scopeId);
         PermissionTicket ticket = ticketStore.create(resourceServer, resource, scope, user.getId());
         ticket.setGrantedTimestamp(Calendar.getInstance().getTimeInMillis());
     }
-
-    private org.keycloak.authorization.model.Scope getScope(String scopeId, ResourceServer resourceServer) {
-        org.keycloak.authorization.model.Scope scope = scopeStore.findByName(resourceServer, scopeId);
-
-        if (scope == null) {
-            scope = scopeStore.findById(resourceServer, scopeId);
-        }
-
-        return scope;
-    }
 }
@@ -0,0 +1,213 @@
+package com.hawk.keycloak.resources.shares;
+
+import com.hawk.keycloak.util.ChunkedStream;
+import com.hawk.keycloak.util.ResultWindow;
+import jakarta.persistence.EntityManager;
+import lombok.Getter;
+import org.keycloak.common.util.Time;
+
+import java.util.*;
+
+/**
+ * The granted permissions of a resource server: which resources are shared with a user, and which resources
+ * of a user are shared with anyone. Both are kept ordered by resource id, so pages can be served exactly,
+ * by offset as well as by keyset.
+ */
+public class ResourceServerShares {
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    @Getter
+    private String version;
+    // The shares version of the resource server, the changes after it are read from the ShareChangeJournal
+    @Getter
+    private long journalVersion;
+    @Getter
+    private final int loadedAt = Time.currentTime();
+
+    // resource -> users with at least one granted permission
+    private final Map<String, Set<String>> requestersByResource = new HashMap<>();
+    // requester -> resources shared with the requester
+    private final Map<String, NavigableSet<String>> sharedWith = new HashMap<>();
+    // owner -> resources of the owner shared with anyone
+    private final Map<String, NavigableSet<String>> sharedBy = new HashMap<>();
+    // shared resource -> owner
+    private final Map<String, String> ownerByResource = new HashMap<>();
+
+    ResourceServerShares(String version, long journalVersion) {
+        this.version = version;
+        this.journalVersion = journalVersion;
+    }
+
+    static ResourceServerShares load(EntityManager em, String resourceServerId, String version, long journalVersion) {
+        ResourceServerShares shares = new ResourceServerShares(version, journalVersion);
+
+        em.createQuery("select distinct p.resource.id, p.owner, p.requester from PermissionTicketEntity p"
+                        + " where p.resourceServer.id = :serverId and p.grantedTimestamp is not null", Object[].class)
+                .setParameter("serverId", resourceServerId)
+                .getResultStream()
+                .forEach(row -> shares.grant((String) row[0], (String) row[1], (String) row[2]));
+
+        return shares;
+    }
+
+    public synchronized List<String> getSharedWith(String userId, Integer firstResult, Integer maxResults) {
+        return page(sharedWith.get(userId), firstResult, maxResults);
+    }
+
+    public synchronized List<String> getSharedWithAfter(String userId, String afterId, int maxResults) {
+        return pageAfter(sharedWith.get(userId), afterId, maxResults);
+    }
+
+    public synchronized List<String> getSharedBy(String userId, Integer firstResult, Integer maxResults) {
+        return page(sharedBy.get(userId), firstResult, maxResults);
+    }
+
+    public synchronized List<String> getSharedByAfter(String userId, String afterId, int maxResults) {
+        return pageAfter(sharedBy.get(userId), afterId, maxResults);
+    }
+
+    public synchronized Set<String> getAllSharedWith(String userId) {
+        return new HashSet<>(sharedWith.getOrDefault(userId, Collections.emptyNavigableSet()));
+    }
+
+    public synchronized Set<String> getAllSharedBy(String userId) {
+        return new HashSet<>(sharedBy.getOrDefault(userId, Collections.emptyNavigableSet()));
+    }
+
+    /**
+     * Returns those of the given resources, that have at least one permission granted to the user
+     */
+    public synchronized Set<String> filterSharedWith(String userId, Collection<String> resourceIds) {
+        return retain(sharedWith.get(userId), resourceIds);
+    }
+
+    /**
+     * Returns those of the given resources, that are owned by the user and have at least one permission granted
+     */
+    public synchronized Set<String> filterSharedBy(String userId, Collection<String> resourceIds) {
+        return retain(sharedBy.get(userId), resourceIds);
+    }
+
+    /**
+     * Replaces the shares of the given resources with their current tickets, e.g. after they were changed by another node
+     */
+    void refresh(EntityManager em, Collection<String> resourceIds, String version, long journalVersion) {
+        List<Object[]> rows = new ArrayList<>();
+        ChunkedStream.chunk(resourceIds.stream(), MAX_IDS_PER_QUERY).forEach(chunk -> rows.addAll(
+                em.createQuery("select distinct p.resource.id, p.owner, p.requester from PermissionTicketEntity p"
+                                + " where p.resource.id in :ids and p.grantedTimestamp is not null", Object[].class)
+                        .setParameter("ids", chunk)
+                        .getResultList()
+        ));
+
+        replace(resourceIds, rows, version, journalVersion);
+    }
+
+    /**
+     * @param rows The resource id, owner and requester of the granted tickets of the resources
+     */
+    synchronized void replace(Collection<String> resourceIds, List<Object[]> rows, String version, long journalVersion) {
+        resourceIds.forEach(this::clear);
+        rows.forEach(row -> grant((String) row[0], (String) row[1], (String) row[2]));
+        this.version = version;
+        this.journalVersion = journalVersion;
+    }
+
+    /**
+     * Applies the changes, if the index is still at the version the changes were made on.
+     * Otherwise, another change was missed, and the index will be updated for the new version anyway.
+     */
+    synchronized void apply(String previousVersion, String version, long journalVersion, Collection<ShareChange> changes) {
+        if (!this.version.equals(previousVersion)) {
+            return;
+        }
+
+        for (ShareChange change : changes) {
+            if (change.granted()) {
+                grant(change.resourceId(), change.ownerId(), change.requesterId());
+            } else {
+                revoke(change.resourceId(), change.ownerId(), change.requesterId());
+            }
+        }
+        this.version = version;
+        this.journalVersion = journalVersion;
+    }
+
+    private void grant(String resourceId, String ownerId, String requesterId) {
+        if (requestersByResource.computeIfAbsent(resourceId, k -> new HashSet<>()).add(requesterId)) {
+            sharedWith.computeIfAbsent(requesterId, k -> new TreeSet<>()).add(resourceId);
+            sharedBy.computeIfAbsent(ownerId, k -> new TreeSet<>()).add(resourceId);
+            ownerByResource.put(resourceId, ownerId);
+        }
+    }
+
+    private void revoke(String resourceId, String ownerId, String requesterId) {
+        Set<String> requesters = requestersByResource.get(resourceId);
+        if (requesters == null || !requesters.remove(requesterId)) {
+            return;
+        }
+
+        remove(sharedWith, requesterId, resourceId);
+        if (requesters.isEmpty()) {
+            requestersByResource.remove(resourceId);
+            ownerByResource.remove(resourceId);
+            remove(sharedBy, ownerId, resourceId);
+        }
+    }
+
+    private void clear(String resourceId) {
+        Set<String> requesters = requestersByResource.remove(resourceId);
+        if (requesters == null) {
+            return;
+        }
+
+        requesters.forEach(requesterId -> remove(sharedWith, requesterId, resourceId));
+        remove(sharedBy, ownerByResource.remove(resourceId), resourceId);
+    }
+
+    private void remove(Map<String, NavigableSet<String>> index, String userId, String resourceId) {
+        NavigableSet<String> resources = index.get(userId);
+        if (resources != null) {
+            resources.remove(resourceId);
+            if (resources.isEmpty()) {
+                index.remove(userId);
+            }
+        }
+    }
+
+    private List<String> page(NavigableSet<String> resources, Integer firstResult, Integer maxResults) {
+        if (resources == null) {
+            return List.of();
+        }
+
+        return resources.stream()
+                .skip(ResultWindow.limitFirst(firstResult))
+                .limit(ResultWindow.limitMax(maxResults))
+                .toList();
+    }
+
+    private List<String> pageAfter(NavigableSet<String> resources, String afterId, int maxResults) {
+        if (resources == null) {
+            return List.of();
+        }
+
+        return (afterId != null ? resources.tailSet(afterId, false) : resources).stream()
+                .limit(maxResults)
+                .toList();
+    }
+
+    private Set<String> retain(NavigableSet<String> resources, Collection<String> resourceIds) {
+        if (resources == null) {
+            return Set.of();
+        }
+
+        Set<String> retained = new HashSet<>();
+        for (String resourceId : resourceIds) {
+            if (resources.contains(resourceId)) {
+                retained.add(resourceId);
+            }
+        }
+        return retained;
+    }
+}
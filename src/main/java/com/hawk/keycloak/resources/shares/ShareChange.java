@@ -0,0 +1,8 @@
+package com.hawk.keycloak.resources.shares;
+
+/**
+ * A change of the permissions of a user on a resource
+ * @param granted True if at least one permission remains granted
+ */
+public record ShareChange(String resourceId, String ownerId, String requesterId, boolean granted) {
+}
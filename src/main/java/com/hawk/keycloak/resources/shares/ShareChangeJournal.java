@@ -0,0 +1,88 @@
+package com.hawk.keycloak.resources.shares;
+
+import com.hawk.keycloak.resources.shares.jpa.ShareChangeEntity;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cluster-wide journal of the resources whose permissions were changed, sequenced by the shares version of their
+ * resource server, so every node can apply the changes to its {@link SharedResourceIndex} instead of reloading it.
+ * <p>
+ * The changes are kept in the database (see {@link ShareChangeEntity}) and written in the transaction of the change
+ * itself, like the {@link com.hawk.keycloak.users.changes.UserChangeJournal}. Changes older than the configured maximum
+ * age are purged in the background.
+ */
+@RequiredArgsConstructor
+public class ShareChangeJournal {
+    // The versions are timestamps of different nodes, and transactions commit in a different order than they took their
+    // version, so a change may become visible after a later version was handed out. Changes are returned with an overlap.
+    private static final long OVERLAP_MILLIS = 30_000;
+
+    private final int maxChanges;
+    private final int maxAge;
+
+    public void record(EntityManager em, String resourceServerId, String resourceId, long version) {
+        persist(em, resourceServerId, resourceId, version);
+    }
+
+    /**
+     * Records a change of an unknown set of resources (e.g. the resource server was changed), which requires a reload
+     */
+    public void reset(EntityManager em, String resourceServerId, long version) {
+        persist(em, resourceServerId, null, version);
+    }
+
+    /**
+     * Returns the ids of the resources changed after the given version
+     * @return The changed resources, or null if the index of the resource server has to be reloaded
+     */
+    public Set<String> getChangedResourcesSince(EntityManager em, String resourceServerId, long since) {
+        long from = since - OVERLAP_MILLIS;
+
+        if (from < getOldestKeptVersion()) {
+            return null;
+        }
+
+        List<String> changes = em.createQuery("select c.resourceId from ShareChangeEntity c"
+                        + " where c.resourceServerId = :serverId and c.version > :version order by c.version", String.class)
+                .setParameter("serverId", resourceServerId)
+                .setParameter("version", from)
+                .setMaxResults(maxChanges + 1)
+                .getResultList();
+
+        if (changes.size() > maxChanges || changes.contains(null)) {
+            return null;
+        }
+
+        return new LinkedHashSet<>(changes);
+    }
+
+    /**
+     * Removes the changes of all resource servers that are older than the maximum age
+     */
+    public void purge(EntityManager em) {
+        em.createQuery("delete from ShareChangeEntity c where c.version < :version")
+                .setParameter("version", getOldestKeptVersion())
+                .executeUpdate();
+    }
+
+    private void persist(EntityManager em, String resourceServerId, String resourceId, long version) {
+        ShareChangeEntity change = new ShareChangeEntity();
+        change.setId(KeycloakModelUtils.generateId());
+        change.setResourceServerId(resourceServerId);
+        change.setResourceId(resourceId);
+        change.setVersion(version);
+        em.persist(change);
+    }
+
+    private long getOldestKeptVersion() {
+        // The versions are timestamps in milliseconds
+        return Time.currentTimeMillis() - maxAge * 1000L;
+    }
+}
@@ -0,0 +1,227 @@
+package com.hawk.keycloak.resources.shares;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide index of the granted permission tickets of every resource server, see {@link ResourceServerShares}.
+ * <p>
+ * The index of a resource server is versioned by the shares version of the resource server (see {@link RealmVersions}),
+ * which is updated on every permission change of this extension, and by the {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider}
+ * whenever resources of the resource server are changed elsewhere. The changed resources are recorded in the
+ * {@link ShareChangeJournal}, so the node that made a change applies it to its index once the change is committed, and all
+ * other nodes re-read the tickets of the changed resources only. The index is only loaded completely, if the journal can not
+ * tell which resources changed, or if the shares of all resource servers of the realm changed (e.g. a user was deleted).
+ * <p>
+ * Only one request per resource server and node updates the index, concurrent requests wait for it and use its result.
+ * Because tickets can also be changed without any event (e.g. through the account console), the index is reloaded after
+ * the configured maximum age as well. That reload runs in the background, requests are served from the old index meanwhile.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class SharedResourceIndex {
+    /**
+     * The scope of the shares version that covers all resource servers of a realm
+     */
+    public static final String ALL_RESOURCE_SERVERS = "*";
+
+    private final Map<String, ResourceServerShares> resourceServers = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<ResourceServerShares>> updates = new ConcurrentHashMap<>();
+    private final int maxAge;
+    private final ShareChangeJournal shareChangeJournal;
+
+    public ResourceServerShares forResourceServer(KeycloakSession session, RealmModel realm, String resourceServerId) {
+        String version = getVersion(realm, resourceServerId);
+
+        ResourceServerShares shares = resourceServers.get(resourceServerId);
+        if (shares != null && shares.getVersion().equals(version)) {
+            if (shares.getLoadedAt() < Time.currentTime() - maxAge) {
+                reloadInBackground(session.getKeycloakSessionFactory(), realm.getId(), resourceServerId);
+            }
+            return shares;
+        }
+
+        while (true) {
+            CompletableFuture<ResourceServerShares> update = new CompletableFuture<>();
+            CompletableFuture<ResourceServerShares> running = updates.putIfAbsent(resourceServerId, update);
+            if (running != null) {
+                // Another request updates the index already, its result is only used if it is at the current version
+                shares = await(running);
+                if (shares != null && shares.getVersion().equals(version)) {
+                    return shares;
+                }
+                continue;
+            }
+
+            try {
+                shares = update(getEntityManager(session), realm, resourceServerId, version);
+                resourceServers.put(resourceServerId, shares);
+                update.complete(shares);
+                return shares;
+            } catch (RuntimeException e) {
+                update.completeExceptionally(e);
+                throw e;
+            } finally {
+                updates.remove(resourceServerId, update);
+            }
+        }
+    }
+
+    /**
+     * Records that the permissions of a user on a resource were changed by this node
+     * @param granted True if at least one permission remains granted
+     */
+    public void recordChange(KeycloakSession session, RealmModel realm, String resourceServerId, String resourceId, String ownerId, String requesterId, boolean granted) {
+        recordChanges(session, realm, resourceServerId, List.of(new ShareChange(resourceId, ownerId, requesterId, granted)));
+    }
+
+    /**
+     * Records many changes of this node at once, the shares versions are only updated once.
+     * The versions and the changed resources are written in the transaction of the session,
+     * the local index is only updated after it was committed.
+     */
+    public void recordChanges(KeycloakSession session, RealmModel realm, String resourceServerId, Collection<ShareChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        String previousVersion = getVersion(realm, resourceServerId);
+        // The clocks of the nodes may differ, the version must move forward anyway
+        long journalVersion = Math.max(Time.currentTimeMillis(), getJournalVersion(realm, resourceServerId) + 1);
+
+        // The version of the realm is moved as well, it versions the access decisions of all resource servers
+        Map<RealmVersions.Version, String> versions = new EnumMap<>(RealmVersions.Version.class);
+        versions.put(RealmVersions.Version.SHARES, String.valueOf(journalVersion));
+        RealmVersions.update(realm, versions, RealmVersions.Version.SHARES, resourceServerId);
+        String version = getVersion(realm, resourceServerId);
+
+        EntityManager em = getEntityManager(session);
+        changes.stream()
+                .map(ShareChange::resourceId)
+                .distinct()
+                .forEach(resourceId -> shareChangeJournal.record(em, resourceServerId, resourceId, journalVersion));
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                ResourceServerShares shares = resourceServers.get(resourceServerId);
+                if (shares != null) {
+                    shares.apply(previousVersion, version, journalVersion, changes);
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // The version was not written either, the index stays valid
+            }
+        });
+    }
+
+    private ResourceServerShares update(EntityManager em, RealmModel realm, String resourceServerId, String version) {
+        // Read before anything else, the changes up to it are part of the index then
+        long journalVersion = getJournalVersion(realm, resourceServerId);
+
+        ResourceServerShares shares = resourceServers.get(resourceServerId);
+        if (shares != null && shares.getVersion().equals(version)) {
+            // Updated in the meantime
+            return shares;
+        }
+
+        if (shares != null && journalVersion >= 0 && shares.getJournalVersion() >= 0 && isSameForAllResourceServers(shares, version)) {
+            Set<String> resourceIds = shareChangeJournal.getChangedResourcesSince(em, resourceServerId, shares.getJournalVersion());
+            if (resourceIds != null) {
+                shares.refresh(em, resourceIds, version, journalVersion);
+                return shares;
+            }
+        }
+
+        return ResourceServerShares.load(em, resourceServerId, version, journalVersion);
+    }
+
+    private void reloadInBackground(KeycloakSessionFactory sessionFactory, String realmId, String resourceServerId) {
+        CompletableFuture<ResourceServerShares> reload = new CompletableFuture<>();
+        if (updates.putIfAbsent(resourceServerId, reload) != null) {
+            return;
+        }
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                ResourceServerShares shares = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    return realm != null ? ResourceServerShares.load(
+                            getEntityManager(session),
+                            resourceServerId,
+                            getVersion(realm, resourceServerId),
+                            getJournalVersion(realm, resourceServerId)
+                    ) : null;
+                });
+                if (shares != null) {
+                    resourceServers.put(resourceServerId, shares);
+                }
+                reload.complete(shares);
+            } catch (RuntimeException e) {
+                log.warn("Failed to reload the shared resources of resource server {}", resourceServerId, e);
+                reload.completeExceptionally(e);
+            } finally {
+                updates.remove(resourceServerId, reload);
+            }
+        });
+    }
+
+    /**
+     * @return The result of the update, or null if it failed
+     */
+    private ResourceServerShares await(CompletableFuture<ResourceServerShares> update) {
+        try {
+            return update.join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+
+    private boolean isSameForAllResourceServers(ResourceServerShares shares, String version) {
+        return shares.getVersion().substring(shares.getVersion().indexOf('/'))
+                .equals(version.substring(version.indexOf('/')));
+    }
+
+    /**
+     * The version of the index of the resource server, made of the shares version of the resource server
+     * and the one of all resource servers of the realm
+     */
+    private String getVersion(RealmModel realm, String resourceServerId) {
+        return Objects.requireNonNullElse(RealmVersions.get(realm, RealmVersions.Version.SHARES, resourceServerId), "")
+                + "/" + Objects.requireNonNullElse(RealmVersions.get(realm, RealmVersions.Version.SHARES, ALL_RESOURCE_SERVERS), "");
+    }
+
+    private long getJournalVersion(RealmModel realm, String resourceServerId) {
+        try {
+            String version = RealmVersions.get(realm, RealmVersions.Version.SHARES, resourceServerId);
+            return version != null ? Long.parseLong(version) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private EntityManager getEntityManager(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
@@ -0,0 +1,31 @@
+package com.hawk.keycloak.resources.shares.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A change of the permissions on a resource, sequenced by the shares version of its resource server.
+ * A change without a resource id marks a change that affected an unknown set of resources.
+ */
+@Entity
+@Table(name = "HAWK_SHARE_CHANGE")
+@Getter
+@Setter
+public class ShareChangeEntity {
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "RESOURCE_SERVER_ID", nullable = false)
+    private String resourceServerId;
+
+    @Column(name = "RESOURCE_ID")
+    private String resourceId;
+
+    @Column(name = "VERSION", nullable = false)
+    private long version;
+}
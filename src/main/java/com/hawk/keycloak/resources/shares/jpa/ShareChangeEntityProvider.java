@@ -0,0 +1,26 @@
+package com.hawk.keycloak.resources.shares.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class ShareChangeEntityProvider implements JpaEntityProvider {
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(ShareChangeEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/hawk-share-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return ShareChangeEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,36 @@
+package com.hawk.keycloak.resources.shares.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Registers the table of the {@link com.hawk.keycloak.resources.shares.ShareChangeJournal} with the Keycloak database
+ */
+public class ShareChangeEntityProviderFactory implements JpaEntityProviderFactory {
+    public static final String PROVIDER_ID = "hawk-share-changes";
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return new ShareChangeEntityProvider();
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
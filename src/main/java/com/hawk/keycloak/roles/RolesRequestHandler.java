@@ -1,55 +1,53 @@
 package com.hawk.keycloak.roles;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
+import com.hawk.keycloak.roles.catalog.RoleCatalog;
+import com.hawk.keycloak.roles.graph.RoleGraph;
+import com.hawk.keycloak.roles.graph.RoleGraphIndex;
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
 import com.hawk.keycloak.util.ResultWindow;
+import com.hawk.keycloak.util.ConditionalRequest;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.Response;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.utils.ModelToRepresentation;
 import org.keycloak.representations.idm.RoleRepresentation;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Stream;
 
 @RequiredArgsConstructor
 public class RolesRequestHandler {
-    private final List<String> IGNORED_ROLES = List.of(
-            "offline_access",
-            "uma_authorization",
-            "uma_protection"
-    );
-
     private final KeycloakSession session;
     private final HawkPermissionEvaluator auth;
+    private final ConditionalRequest conditionalRequest;
+    private final RoleCatalog roleCatalog;
+    private final RoleGraphIndex roleGraphIndex;
+    private final LocalUserIdQuery localUserIdQuery;
 
-    public Stream<RoleRepresentation> handleRolesRequest(
+    public Response handleRolesRequest(
             Integer firstResult,
             Integer maxResults
     ) {
         auth.requireViewRoles();
+        EntityTag entityTag = conditionalRequest.evaluate();
 
-        RealmModel realm = session.getContext().getRealm();
-
-        return ResultWindow.limitStream(
-                Stream.concat(
-                                session.roles().getRealmRolesStream(realm, firstResult, maxResults),
-                                session.getContext().getClient().getRolesStream(firstResult, maxResults)
-                        ).filter(r -> !IGNORED_ROLES.contains(r.getName()) && !r.getName().startsWith("default-roles-"))
-                        .distinct(),
-                firstResult,
-                maxResults
-        ).map(ModelToRepresentation::toRepresentation);
+        List<RoleRepresentation> roles = roleCatalog
+                .getSnapshot(session, session.getContext().getRealm(), session.getContext().getClient())
+                .slice(firstResult, maxResults);
 
+        return ConditionalRequest.tag(Response.ok(roles), entityTag).build();
     }
 
     public Stream<String> handleRoleMembersRequest(
             String roleId,
+            Boolean effective,
             Integer firstResult,
             Integer maxResults
     ) {
@@ -70,6 +68,16 @@ public class RolesRequestHandler {
             }
         }
 
+        if (effective != null && effective) {
+            RoleGraph.Grants grants = roleGraphIndex.forRealm(session, realm).getGrantsOf(roleModel.getId());
+            return localUserIdQuery.findIdsByGrants(
+                    grants.roleIds(),
+                    grants.groupIds(),
+                    ResultWindow.limitFirst(firstResult),
+                    ResultWindow.limitMax(maxResults)
+            ).stream();
+        }
+
         return session.users().getRoleMembersStream(realm, roleModel, firstResult, maxResults)
                 .map(UserModel::getId);
     }
@@ -0,0 +1,75 @@
+package com.hawk.keycloak.roles.catalog;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.util.BoundedCache;
+import com.hawk.keycloak.util.model.CacheStatistics;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Node-wide cache of the roles visible to a client, see {@link RoleCatalogSnapshot}.
+ * <p>
+ * Snapshots are versioned by the "roles version" of the realm (see {@link RealmVersions}), which the
+ * {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} updates whenever a role (or a client) is changed.
+ * Because the version is shared by all nodes, a change seen by one node invalidates the snapshots on all nodes.
+ */
+public class RoleCatalog {
+    private static final List<String> IGNORED_ROLES = List.of(
+            "offline_access",
+            "uma_authorization",
+            "uma_protection"
+    );
+
+    private final BoundedCache<Key, RoleCatalogSnapshot> cache;
+
+    public RoleCatalog(int maxEntries) {
+        this.cache = new BoundedCache<>(maxEntries, Long.MAX_VALUE, RoleCatalogSnapshot::size);
+    }
+
+    public RoleCatalogSnapshot getSnapshot(KeycloakSession session, RealmModel realm, ClientModel client) {
+        String version = RealmVersions.get(realm, RealmVersions.Version.ROLES);
+        Key key = new Key(realm.getId(), version != null ? version : "", client.getId());
+
+        RoleCatalogSnapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            // Concurrent requests might build the same snapshot, which is cheaper than serializing them
+            snapshot = buildSnapshot(session, realm, client);
+            cache.put(key, snapshot);
+        }
+
+        return snapshot;
+    }
+
+    public void invalidateRealm(String realmId) {
+        cache.removeIf(key -> key.realmId().equals(realmId));
+    }
+
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    private RoleCatalogSnapshot buildSnapshot(KeycloakSession session, RealmModel realm, ClientModel client) {
+        return new RoleCatalogSnapshot(
+                Stream.concat(
+                                session.roles().getRealmRolesStream(realm),
+                                client.getRolesStream()
+                        )
+                        .filter(role -> !IGNORED_ROLES.contains(role.getName()) && !role.getName().startsWith("default-roles-"))
+                        .map(RoleModel::getId)
+                        .distinct()
+                        .map(realm::getRoleById)
+                        .map(ModelToRepresentation::toRepresentation)
+                        .toArray(RoleRepresentation[]::new)
+        );
+    }
+
+    private record Key(String realmId, String version, String clientId) {
+    }
+}
@@ -0,0 +1,29 @@
+package com.hawk.keycloak.roles.catalog;
+
+import com.hawk.keycloak.util.ResultWindow;
+import org.keycloak.representations.idm.RoleRepresentation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The roles of a realm and a client, without the built-in default roles, in the order of the role providers
+ * (realm roles first). The representations are built once and must not be modified.
+ */
+public class RoleCatalogSnapshot {
+    private final RoleRepresentation[] roles;
+
+    public RoleCatalogSnapshot(RoleRepresentation[] roles) {
+        this.roles = roles;
+    }
+
+    public List<RoleRepresentation> slice(Integer firstResult, Integer maxResults) {
+        int from = Math.min(ResultWindow.limitFirst(firstResult), roles.length);
+        int to = (int) Math.min((long) from + ResultWindow.limitMax(maxResults), roles.length);
+        return Arrays.asList(roles).subList(from, to);
+    }
+
+    public long size() {
+        return roles.length;
+    }
+}
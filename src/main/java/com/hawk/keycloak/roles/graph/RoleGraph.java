@@ -0,0 +1,100 @@
+package com.hawk.keycloak.roles.graph;
+
+import jakarta.persistence.EntityManager;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The composite roles, groups and group role mappings of a realm, loaded with three queries.
+ * <p>
+ * Answers which roles and groups grant a role, including composites and inherited group mappings, so the effective
+ * members of a role can be found with a single query, instead of crawling the graph role by role.
+ * The transitive closure of a role is computed on its first use and kept until the graph is replaced.
+ */
+public class RoleGraph {
+    @Getter
+    private final String version;
+    // child role -> composite roles that directly contain it
+    private final Map<String, List<String>> parentRoles;
+    // role -> groups it is directly mapped to
+    private final Map<String, List<String>> groupsByRole;
+    // group -> direct subgroups
+    private final Map<String, List<String>> subGroups;
+    private final Map<String, Grants> closures = new ConcurrentHashMap<>();
+
+    private RoleGraph(String version, Map<String, List<String>> parentRoles, Map<String, List<String>> groupsByRole, Map<String, List<String>> subGroups) {
+        this.version = version;
+        this.parentRoles = parentRoles;
+        this.groupsByRole = groupsByRole;
+        this.subGroups = subGroups;
+    }
+
+    static RoleGraph load(EntityManager em, String realmId, String version) {
+        Map<String, List<String>> parentRoles = new HashMap<>();
+        em.createQuery("select r.id, c.id from RoleEntity r join r.compositeRoles c where r.realmId = :realm", Object[].class)
+                .setParameter("realm", realmId)
+                .getResultStream()
+                .forEach(row -> parentRoles.computeIfAbsent((String) row[1], k -> new ArrayList<>()).add((String) row[0]));
+
+        Map<String, List<String>> groupsByRole = new HashMap<>();
+        em.createQuery("select m.roleId, g.id from GroupRoleMappingEntity m join m.group g where g.realm = :realm", Object[].class)
+                .setParameter("realm", realmId)
+                .getResultStream()
+                .forEach(row -> groupsByRole.computeIfAbsent((String) row[0], k -> new ArrayList<>()).add((String) row[1]));
+
+        Map<String, List<String>> subGroups = new HashMap<>();
+        em.createQuery("select g.id, g.parentId from GroupEntity g where g.realm = :realm", Object[].class)
+                .setParameter("realm", realmId)
+                .getResultStream()
+                .filter(row -> row[1] != null && !((String) row[1]).isBlank())
+                .forEach(row -> subGroups.computeIfAbsent((String) row[1], k -> new ArrayList<>()).add((String) row[0]));
+
+        return new RoleGraph(version, parentRoles, groupsByRole, subGroups);
+    }
+
+    /**
+     * Returns the roles and groups that grant the given role to their members
+     */
+    public Grants getGrantsOf(String roleId) {
+        return closures.computeIfAbsent(roleId, this::computeGrants);
+    }
+
+    private Grants computeGrants(String roleId) {
+        Set<String> roles = collect(roleId, parentRoles);
+
+        Set<String> groups = new TreeSet<>();
+        for (String role : roles) {
+            for (String group : groupsByRole.getOrDefault(role, List.of())) {
+                // Members of subgroups inherit the role mappings of the parent groups
+                groups.addAll(collect(group, subGroups));
+            }
+        }
+
+        return new Grants(List.copyOf(roles), List.copyOf(groups));
+    }
+
+    private Set<String> collect(String start, Map<String, List<String>> edges) {
+        Set<String> visited = new TreeSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(start);
+
+        // Composite roles may contain cycles, visited nodes are skipped
+        while (!queue.isEmpty()) {
+            String node = queue.poll();
+            if (visited.add(node)) {
+                queue.addAll(edges.getOrDefault(node, List.of()));
+            }
+        }
+
+        return visited;
+    }
+
+    /**
+     * @param roleIds The role itself and all composite roles containing it (transitively)
+     * @param groupIds All groups that have one of the roles mapped, and their subgroups
+     */
+    public record Grants(List<String> roleIds, List<String> groupIds) {
+    }
+}
@@ -0,0 +1,38 @@
+package com.hawk.keycloak.roles.graph;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide index of the composite role and group graph of every realm, see {@link RoleGraph}.
+ * <p>
+ * Graphs are versioned by the "role graph version" of the realm (see {@link RealmVersions}), which the
+ * {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} updates whenever a role, a group or
+ * the role mappings of a group are changed. Because the version is shared by all nodes, a change seen by
+ * one node makes all nodes rebuild the graph of the realm on its next use.
+ */
+public class RoleGraphIndex {
+    private final Map<String, RoleGraph> realms = new ConcurrentHashMap<>();
+
+    public RoleGraph forRealm(KeycloakSession session, RealmModel realm) {
+        String version = Objects.requireNonNullElse(RealmVersions.get(realm, RealmVersions.Version.ROLE_GRAPH), "");
+
+        RoleGraph graph = realms.get(realm.getId());
+        if (graph == null || !graph.getVersion().equals(version)) {
+            graph = RoleGraph.load(session.getProvider(JpaConnectionProvider.class).getEntityManager(), realm.getId(), version);
+            realms.put(realm.getId(), graph);
+        }
+
+        return graph;
+    }
+
+    public void invalidateRealm(String realmId) {
+        realms.remove(realmId);
+    }
+}
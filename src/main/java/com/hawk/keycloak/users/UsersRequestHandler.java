@@ -1,10 +1,23 @@
 package com.hawk.keycloak.users;
 
 import com.hawk.keycloak.auth.HawkPermissionEvaluator;
+import com.hawk.keycloak.cacheBuster.RealmVersions;
 import com.hawk.keycloak.users.lookup.*;
+import com.hawk.keycloak.users.model.ClaimProjection;
+import com.hawk.keycloak.users.changes.UserChangeJournal;
+import com.hawk.keycloak.users.model.UserChanges;
+import com.hawk.keycloak.util.ConditionalRequest;
+import com.hawk.keycloak.util.PageCursor;
+import com.hawk.keycloak.util.ResultWindow;
+import com.hawk.keycloak.util.streaming.StreamFormat;
+import com.hawk.keycloak.util.streaming.StreamingJsonResponse;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.Response;
 import lombok.RequiredArgsConstructor;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
 import java.util.List;
@@ -16,55 +29,148 @@ public class UsersRequestHandler {
     private final KeycloakSession session;
     private final HawkPermissionEvaluator auth;
     private final UserInfoGenerator userInfoGenerator;
+    private final ParallelUserInfoRenderer parallelUserInfoRenderer;
+    private final ConditionalRequest conditionalRequest;
+    private final UserChangeJournal userChangeJournal;
 
     public Response getUserList(
             String search,
             String attributes,
             List<String> ids,
             Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups,
             Boolean idsOnly,
             Integer firstResult,
-            Integer maxResults
+            Integer maxResults,
+            String cursor,
+            List<String> fields,
+            StreamFormat format
     ) {
         idsOnly = idsOnly != null ? idsOnly : false;
+        UserInfoGenerator projectedUserInfoGenerator = userInfoGenerator.withProjection(ClaimProjection.fromList(fields));
 
         auth.admin().users().requireQuery();
         if (!idsOnly) {
             auth.admin().users().requireView();
         }
 
+        // The online users are not covered by the cache-buster, so these requests can't be answered conditionally
+        EntityTag entityTag = onlineOnly != null && onlineOnly
+                ? null
+                : conditionalRequest.evaluate(RealmVersions.get(session.getContext().getRealm(), RealmVersions.Version.CLAIMS));
+
+        if (cursor != null) {
+            if (firstResult != null) {
+                throw new BadRequestException("Pagination by cursor can not be combined with the first parameter");
+            }
+
+            return ConditionalRequest.tag(
+                    getUserPage(search, attributes, ids, onlineOnly, roles, groups, idsOnly, ResultWindow.limitMax(maxResults), cursor, projectedUserInfoGenerator, format),
+                    entityTag
+            ).build();
+        }
+
+        if (!idsOnly && ids != null && !ids.isEmpty()) {
+            // Only the existence of the users is checked upfront, the users of the window are loaded while they are written
+            List<String> windowIds = userFinder.findExistingIds(search, attributes, ids, onlineOnly, roles, groups)
+                    .skip(ResultWindow.limitFirst(firstResult))
+                    .limit(ResultWindow.limitMax(maxResults))
+                    .toList();
+            return ConditionalRequest.tag(renderUserinfo(windowIds, projectedUserInfoGenerator, format), entityTag).build();
+        }
+
         Stream<UserModel> users = userFinder.findByFilters(
                 search,
                 attributes,
                 ids,
                 onlineOnly,
+                roles,
+                groups,
                 firstResult,
                 maxResults
         );
 
+        List<String> userIds = users.map(UserModel::getId).toList();
+
         if (idsOnly) {
-            return Response.ok(users.map(UserModel::getId)).build();
+            return ConditionalRequest.tag(StreamingJsonResponse.okStrings(userIds, format), entityTag).build();
         }
 
-        return Response.ok(users.map(user -> userInfoGenerator.getUserinfo(session.getContext().getRealm(), user))).build();
+        return ConditionalRequest.tag(renderUserinfo(userIds, projectedUserInfoGenerator, format), entityTag).build();
+    }
+
+    private Response.ResponseBuilder getUserPage(
+            String search,
+            String attributes,
+            List<String> ids,
+            Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups,
+            boolean idsOnly,
+            int maxResults,
+            String cursor,
+            UserInfoGenerator userInfoGenerator,
+            StreamFormat format
+    ) {
+        RealmModel realm = session.getContext().getRealm();
+        PageCursor pageCursor = PageCursor.resolve(cursor, realm, "users", search, attributes, ids, onlineOnly, roles, groups);
+
+        // Only the ids of the page are resolved upfront, so the cursor of the next page can be sent with the headers
+        List<String> pageIds = userFinder.findIdsAfter(search, attributes, ids, onlineOnly, roles, groups, pageCursor.lastKey(), maxResults);
+
+        Response.ResponseBuilder response = idsOnly
+                ? StreamingJsonResponse.okStrings(pageIds, format)
+                : renderUserinfo(pageIds, userInfoGenerator, format);
+
+        return pageCursor.addHeaders(response, pageIds, maxResults, realm);
+    }
+
+    /**
+     * The users are loaded and rendered while the response is written, in chunks that are large enough to be
+     * rendered in parallel
+     */
+    private Response.ResponseBuilder renderUserinfo(List<String> userIds, UserInfoGenerator userInfoGenerator, StreamFormat format) {
+        return StreamingJsonResponse.render(
+                session,
+                userIds,
+                Math.max(StreamingJsonResponse.DEFAULT_CHUNK_SIZE, parallelUserInfoRenderer.getMinBatchSize()),
+                outputSession -> chunk -> parallelUserInfoRenderer.render(outputSession, chunk, userInfoGenerator),
+                format
+        );
+    }
+
+    public UserChanges getUserChanges(Long since) {
+        auth.admin().users().requireQuery();
+
+        RealmModel realm = session.getContext().getRealm();
+        String currentVersion = RealmVersions.get(realm, RealmVersions.Version.CACHE_BUSTER);
+
+        if (since == null) {
+            return UserChanges.fullResyncRequired(currentVersion);
+        }
+
+        return userChangeJournal.forRealm(session.getProvider(JpaConnectionProvider.class).getEntityManager(), realm.getId())
+                .getChangesSince(since, currentVersion);
     }
 
     public Response getUserCount(
             String search,
             String attributes,
-            Boolean onlineOnly
+            Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups
     ) {
         auth.admin().users().requireQuery();
 
-        Stream<UserModel> users = userFinder.findByFilters(
+        long count = userFinder.countByFilters(
                 search,
                 attributes,
-                null,
                 onlineOnly,
-                0,
-                99999
+                roles,
+                groups
         );
 
-        return Response.ok(users.count()).build();
+        return Response.ok(count).build();
     }
 }
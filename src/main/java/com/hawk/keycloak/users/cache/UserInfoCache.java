@@ -0,0 +1,105 @@
+package com.hawk.keycloak.users.cache;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.util.BoundedCache;
+import com.hawk.keycloak.util.model.CacheStatistics;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.CachedUserModel;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Node-wide cache of rendered userinfo claims.
+ * <p>
+ * Entries are versioned on two levels:
+ * <ul>
+ *     <li>by the "claims version" of the realm (see {@link RealmVersions}), which the
+ *     {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} updates whenever a change is observed that could
+ *     alter the claims of many users (roles, groups, mappers, client scopes...). Because the version is shared by all nodes,
+ *     such a change invalidates the entries on all nodes.</li>
+ *     <li>by the user: an entry remembers when the user was loaded into the Keycloak user cache. Any change of the user,
+ *     its role mappings or its groups evicts the cached user on all nodes, so an entry of an older load is stale.
+ *     Users that are not held by the user cache are not cached here either.</li>
+ * </ul>
+ * Entries expire after the configured maximum age as well, in case a change slipped through both of them.
+ */
+public class UserInfoCache {
+    private final BoundedCache<Key, Entry> cache;
+    private final int maxAge;
+
+    public UserInfoCache(int maxEntries, long maxWeight, int maxAge) {
+        this.cache = new BoundedCache<>(maxEntries, maxWeight, entry -> estimateWeight(entry.claims()));
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param projection The requested claims, see {@link com.hawk.keycloak.users.model.ClaimProjection#getKey()}
+     */
+    public Key createKey(RealmModel realm, String clientId, String userId, String projection) {
+        String version = RealmVersions.get(realm, RealmVersions.Version.CLAIMS);
+        return new Key(realm.getId(), version != null ? version : "", clientId, userId, projection != null ? projection : "");
+    }
+
+    /**
+     * Returns null, if the claims are not cached, expired or were rendered from another state of the user
+     */
+    public Map<String, Object> get(Key key, UserModel user) {
+        if (!(user instanceof CachedUserModel cachedUser)) {
+            cache.recordMiss();
+            return null;
+        }
+
+        // Stale entries count as misses, so the hit rate is the share of requests that were not rendered
+        Entry entry = cache.peek(key);
+        if (entry == null
+                || entry.userCacheTimestamp() != cachedUser.getCacheTimestamp()
+                || entry.renderedAt() < Time.currentTime() - maxAge) {
+            cache.recordMiss();
+            return null;
+        }
+
+        cache.recordHit();
+        return entry.claims();
+    }
+
+    public void put(Key key, UserModel user, Map<String, Object> claims) {
+        if (user instanceof CachedUserModel cachedUser) {
+            cache.put(key, new Entry(claims, cachedUser.getCacheTimestamp(), Time.currentTime()));
+        }
+    }
+
+    public void invalidateRealm(String realmId) {
+        cache.removeIf(key -> key.realmId().equals(realmId));
+    }
+
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    /**
+     * A rough estimate of the memory footprint of the claims, in characters
+     */
+    private static long estimateWeight(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            return map.entrySet().stream()
+                    .mapToLong(e -> estimateWeight(e.getKey()) + estimateWeight(e.getValue()))
+                    .sum();
+        }
+        if (value instanceof Collection<?> collection) {
+            return collection.stream().mapToLong(UserInfoCache::estimateWeight).sum();
+        }
+        if (value instanceof String string) {
+            return string.length();
+        }
+        return 8;
+    }
+
+    public record Key(String realmId, String version, String clientId, String userId, String projection) {
+    }
+
+    private record Entry(Map<String, Object> claims, long userCacheTimestamp, int renderedAt) {
+    }
+}
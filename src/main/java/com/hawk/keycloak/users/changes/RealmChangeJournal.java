@@ -0,0 +1,84 @@
+package com.hawk.keycloak.users.changes;
+
+import com.hawk.keycloak.users.changes.jpa.UserChangeEntity;
+import com.hawk.keycloak.users.model.UserChanges;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The changed users of a single realm, in the order of the cache-buster version they were changed with, see {@link UserChangeJournal}.
+ * <p>
+ * The journal can only answer for a window of versions: changes older than the maximum age are forgotten,
+ * and a change that could not be attributed to single users requires a full resync of everything before it.
+ */
+@RequiredArgsConstructor
+public class RealmChangeJournal {
+    // The versions are timestamps of different nodes, and transactions commit in a different order than they took their
+    // version, so a change may become visible after a later version was handed out. Changes are returned with an overlap.
+    private static final long OVERLAP_MILLIS = 30_000;
+
+    private final EntityManager em;
+    private final String realmId;
+    private final int maxChanges;
+    private final long oldestKeptVersion;
+
+    public void record(String userId, long version) {
+        persist(userId, version);
+    }
+
+    /**
+     * Records a change of an unknown set of users (e.g. a role or group was changed), which requires a full resync
+     */
+    public void reset(long version) {
+        persist(null, version);
+    }
+
+    /**
+     * Returns the ids of the users changed after the given version, or signals that a full resync is required
+     * @param currentVersion The current value of the cache-buster
+     */
+    public UserChanges getChangesSince(long since, String currentVersion) {
+        long from = since - OVERLAP_MILLIS;
+
+        if (currentVersion == null || from < oldestKeptVersion) {
+            return UserChanges.fullResyncRequired(currentVersion);
+        }
+
+        List<Object[]> changes = em.createQuery("select c.userId, c.version from UserChangeEntity c"
+                        + " where c.realmId = :realmId and c.version > :version order by c.version", Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("version", from)
+                .setMaxResults(maxChanges + 1)
+                .getResultList();
+
+        if (changes.size() > maxChanges) {
+            return UserChanges.fullResyncRequired(currentVersion);
+        }
+
+        Set<String> userIds = new LinkedHashSet<>();
+        for (Object[] change : changes) {
+            if (change[0] == null) {
+                // A change that affected an unknown set of users. Even within the overlap, it might have been
+                // committed after the client read the users, so it can not be told apart from a new one
+                return UserChanges.fullResyncRequired(currentVersion);
+            }
+            userIds.add((String) change[0]);
+        }
+
+        return UserChanges.changed(currentVersion, userIds);
+    }
+
+    private void persist(String userId, long version) {
+        UserChangeEntity change = new UserChangeEntity();
+        change.setId(KeycloakModelUtils.generateId());
+        change.setRealmId(realmId);
+        change.setUserId(userId);
+        change.setVersion(version);
+        em.persist(change);
+    }
+}
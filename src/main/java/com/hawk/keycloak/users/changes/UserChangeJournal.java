@@ -0,0 +1,37 @@
+package com.hawk.keycloak.users.changes;
+
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.common.util.Time;
+
+/**
+ * Cluster-wide journal of the users that were changed, sequenced by the cache-buster versions written by
+ * the {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider}.
+ * <p>
+ * The changes are kept in the database (see {@link com.hawk.keycloak.users.changes.jpa.UserChangeEntity}) and written
+ * in the transaction of the change itself, so they are visible to all nodes as soon as the change is committed,
+ * and never recorded at all if it is rolled back. Changes older than the configured maximum age are purged in the background.
+ */
+@RequiredArgsConstructor
+public class UserChangeJournal {
+    private final int maxChanges;
+    private final int maxAge;
+
+    public RealmChangeJournal forRealm(EntityManager em, String realmId) {
+        return new RealmChangeJournal(em, realmId, maxChanges, getOldestKeptVersion());
+    }
+
+    /**
+     * Removes the changes of all realms that are older than the maximum age
+     */
+    public void purge(EntityManager em) {
+        em.createQuery("delete from UserChangeEntity c where c.version < :version")
+                .setParameter("version", getOldestKeptVersion())
+                .executeUpdate();
+    }
+
+    private long getOldestKeptVersion() {
+        // The versions are timestamps in milliseconds
+        return Time.currentTimeMillis() - maxAge * 1000L;
+    }
+}
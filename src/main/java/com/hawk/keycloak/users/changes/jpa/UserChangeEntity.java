@@ -0,0 +1,31 @@
+package com.hawk.keycloak.users.changes.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A change of a user, sequenced by the cache-buster version it was made with.
+ * A change without a user id marks a change that affected an unknown set of users.
+ */
+@Entity
+@Table(name = "HAWK_USER_CHANGE")
+@Getter
+@Setter
+public class UserChangeEntity {
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "USER_ID")
+    private String userId;
+
+    @Column(name = "VERSION", nullable = false)
+    private long version;
+}
@@ -0,0 +1,26 @@
+package com.hawk.keycloak.users.changes.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class UserChangeEntityProvider implements JpaEntityProvider {
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(UserChangeEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/hawk-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return UserChangeEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,96 @@
+package com.hawk.keycloak.users.lookup;
+
+import com.hawk.keycloak.util.ChunkedStream;
+import com.hawk.keycloak.util.LocalCacheProbe;
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Loads many users by their ids with a single query per {@link LocalUserIdQuery#MAX_IDS_PER_QUERY} ids,
+ * instead of one round trip per user.
+ * <p>
+ * Only the users that are not held by the user cache are prefetched: their entities (and attributes) are loaded
+ * into the persistence context in one go, afterward every user is resolved through the regular {@link UserProvider}.
+ * Cached users are served by the user cache, all others are found in the persistence context without hitting
+ * the database again and are put into the user cache on the way.
+ */
+public class BulkUserLoader {
+    private final EntityManager em;
+    private final UserProvider userProvider;
+    private final RealmModel realm;
+    private final Predicate<String> isCached;
+
+    public BulkUserLoader(KeycloakSession session, RealmModel realm) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.userProvider = session.users();
+        this.realm = realm;
+        this.isCached = LocalCacheProbe.forCache(session, LocalCacheProbe.USER_CACHE);
+    }
+
+    /**
+     * Returns the users in the order of the given ids, unknown ids are skipped
+     */
+    public Stream<UserModel> loadByIds(String[] userIds) {
+        return ChunkedStream.chunk(Arrays.stream(userIds), LocalUserIdQuery.MAX_IDS_PER_QUERY)
+                .flatMap(chunk -> {
+                    prefetch(chunk);
+                    return chunk.stream()
+                            .map(userId -> userProvider.getUserById(realm, userId))
+                            .filter(Objects::nonNull);
+                });
+    }
+
+    /**
+     * Lazily keeps the ids of the users that exist, in the given order, without loading the users.
+     * Users held by the user cache are known to exist, the others are looked up with a single query per chunk.
+     * Only ids that are not found in the local database are resolved through the {@link UserProvider},
+     * in case they belong to a federation provider.
+     */
+    public Stream<String> filterExisting(Stream<String> userIds) {
+        return ChunkedStream.chunk(userIds, LocalUserIdQuery.MAX_IDS_PER_QUERY)
+                .flatMap(chunk -> {
+                    Set<String> localIds = findLocalIds(chunk.stream().filter(isCached.negate()).toList());
+                    return chunk.stream()
+                            .filter(userId -> isCached.test(userId)
+                                    || localIds.contains(userId)
+                                    || userProvider.getUserById(realm, userId) != null);
+                });
+    }
+
+    private Set<String> findLocalIds(List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Set.of();
+        }
+
+        return new HashSet<>(em.createQuery("select u.id from UserEntity u where u.realmId = :realmId and u.id in :ids", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("ids", userIds)
+                .getResultList());
+    }
+
+    private void prefetch(List<String> userIds) {
+        userIds = userIds.stream().filter(isCached.negate()).toList();
+
+        if (userIds.isEmpty()) {
+            return;
+        }
+
+        em.createQuery("select u from UserEntity u left join fetch u.attributes where u.realmId = :realmId and u.id in :ids", UserEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("ids", userIds)
+                .getResultList();
+    }
+}
@@ -0,0 +1,231 @@
+package com.hawk.keycloak.users.lookup;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.*;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.keycloak.models.jpa.entities.UserRoleMappingEntity;
+import org.keycloak.storage.jpa.JpaHashUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs queries against the local (JPA) user store that only touch user ids, so no {@link UserModel} must be hydrated.
+ * The filters are interpreted exactly like {@link org.keycloak.models.jpa.JpaUserProvider#searchForUserStream}
+ * and {@link org.keycloak.models.jpa.JpaUserProvider#getUsersCount(RealmModel, Map)} do.
+ */
+public class LocalUserIdQuery {
+    // Some databases (e.g. Oracle) do not allow more than 1000 elements in an IN clause
+    public static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final EntityManager em;
+    private final RealmModel realm;
+
+    public LocalUserIdQuery(KeycloakSession session, RealmModel realm) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.realm = realm;
+    }
+
+    /**
+     * Counts the users matching the given filters, optionally restricted to a list of user ids
+     * @param attributes The search filters, the same map you would pass to {@link org.keycloak.models.UserProvider#searchForUserStream}
+     * @param userIds If not null, only users with one of these ids are counted (at most {@link #MAX_IDS_PER_QUERY})
+     */
+    public long count(Map<String, String> attributes, Collection<String> userIds) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+
+        query.select(builder.countDistinct(root))
+                .where(predicates(attributes, userIds, root, builder).toArray(Predicate[]::new));
+
+        return em.createQuery(query).getSingleResult();
+    }
+
+    /**
+     * Finds the ids of the users matching the given filters, ordered by id
+     * @param attributes The search filters, the same map you would pass to {@link org.keycloak.models.UserProvider#searchForUserStream}
+     * @param userIds If not null, only users with one of these ids are returned (at most {@link #MAX_IDS_PER_QUERY})
+     * @param afterId If not null, only ids greater than this one are returned (keyset pagination)
+     * @param maxResults The maximum number of ids to return
+     */
+    public List<String> findIds(Map<String, String> attributes, Collection<String> userIds, String afterId, int maxResults) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<String> query = builder.createQuery(String.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+
+        List<Predicate> predicates = predicates(attributes, userIds, root, builder);
+        if (afterId != null) {
+            predicates.add(builder.greaterThan(root.get("id"), afterId));
+        }
+
+        query.select(root.get("id"))
+                .distinct(true)
+                .where(predicates.toArray(Predicate[]::new))
+                .orderBy(builder.asc(root.get("id")));
+
+        return em.createQuery(query).setMaxResults(maxResults).getResultList();
+    }
+
+    /**
+     * Finds the ids of the users that have one of the given roles mapped directly, or are member of one of the given groups,
+     * ordered by id
+     */
+    public List<String> findIdsByGrants(Collection<String> roleIds, Collection<String> groupIds, int firstResult, int maxResults) {
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<String> query = builder.createQuery(String.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+
+        List<Predicate> grants = new ArrayList<>();
+        if (!roleIds.isEmpty()) {
+            Subquery<String> roleMappings = query.subquery(String.class);
+            Root<UserRoleMappingEntity> mapping = roleMappings.from(UserRoleMappingEntity.class);
+            roleMappings.select(mapping.get("roleId"))
+                    .where(builder.equal(mapping.get("user"), root), inChunks(mapping.get("roleId"), roleIds, builder));
+            grants.add(builder.exists(roleMappings));
+        }
+        if (!groupIds.isEmpty()) {
+            Subquery<String> memberships = query.subquery(String.class);
+            Root<UserGroupMembershipEntity> membership = memberships.from(UserGroupMembershipEntity.class);
+            memberships.select(membership.get("groupId"))
+                    .where(builder.equal(membership.get("user"), root), inChunks(membership.get("groupId"), groupIds, builder));
+            grants.add(builder.exists(memberships));
+        }
+
+        if (grants.isEmpty()) {
+            return List.of();
+        }
+
+        query.select(root.get("id"))
+                .where(builder.equal(root.get("realmId"), realm.getId()), builder.or(grants.toArray(Predicate[]::new)))
+                .orderBy(builder.asc(root.get("id")));
+
+        return em.createQuery(query).setFirstResult(firstResult).setMaxResults(maxResults).getResultList();
+    }
+
+    private Predicate inChunks(Path<String> path, Collection<String> values, CriteriaBuilder builder) {
+        List<String> list = List.copyOf(values);
+        List<Predicate> chunks = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += MAX_IDS_PER_QUERY) {
+            chunks.add(path.in(list.subList(i, Math.min(i + MAX_IDS_PER_QUERY, list.size()))));
+        }
+        return builder.or(chunks.toArray(Predicate[]::new));
+    }
+
+    private List<Predicate> predicates(Map<String, String> attributes, Collection<String> userIds, Root<UserEntity> root, CriteriaBuilder builder) {
+        List<Predicate> predicates = new ArrayList<>();
+        List<Predicate> attributePredicates = new ArrayList<>();
+        boolean exact = Boolean.parseBoolean(attributes.get(UserModel.EXACT));
+        Join<Object, Object> federatedIdentitiesJoin = null;
+
+        predicates.add(builder.equal(root.get("realmId"), realm.getId()));
+
+        if (userIds != null) {
+            predicates.add(root.get("id").in(userIds));
+        }
+
+        // Service accounts are only included on request, the same rule the UserFinder passes on to the user providers
+        if (!Boolean.parseBoolean(attributes.get(UserModel.INCLUDE_SERVICE_ACCOUNT))) {
+            predicates.add(root.get("serviceAccountClientLink").isNull());
+        }
+
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+
+            if (value == null) {
+                continue;
+            }
+
+            switch (key) {
+                case UserModel.SEARCH:
+                    for (String stringToSearch : value.trim().split("\\s+")) {
+                        predicates.add(builder.or(searchPredicates(stringToSearch, root, builder)));
+                    }
+                    break;
+                case UserModel.FIRST_NAME:
+                case UserModel.LAST_NAME:
+                    predicates.add(exact
+                            ? builder.equal(builder.lower(root.get(key)), value.toLowerCase())
+                            : builder.like(builder.lower(root.get(key)), "%" + value.toLowerCase() + "%"));
+                    break;
+                case UserModel.USERNAME:
+                case UserModel.EMAIL:
+                    predicates.add(exact
+                            ? builder.equal(root.get(key), value.toLowerCase())
+                            : builder.like(root.get(key), "%" + value.toLowerCase() + "%"));
+                    break;
+                case UserModel.EMAIL_VERIFIED:
+                    predicates.add(builder.equal(root.get(key), Boolean.valueOf(value.toLowerCase())));
+                    break;
+                case UserModel.ENABLED:
+                    predicates.add(builder.equal(root.get(key), Boolean.valueOf(value)));
+                    break;
+                case UserModel.IDP_ALIAS:
+                case UserModel.IDP_USER_ID:
+                    if (federatedIdentitiesJoin == null) {
+                        federatedIdentitiesJoin = root.join("federatedIdentities");
+                    }
+                    predicates.add(builder.equal(
+                            federatedIdentitiesJoin.get(key.equals(UserModel.IDP_ALIAS) ? "identityProvider" : "userId"),
+                            value
+                    ));
+                    break;
+                case UserModel.EXACT:
+                case UserModel.INCLUDE_SERVICE_ACCOUNT:
+                    break;
+                default:
+                    Join<Object, Object> attributesJoin = root.join("attributes", JoinType.LEFT);
+                    Predicate valuePredicate;
+                    if (value.length() > 255) {
+                        valuePredicate = builder.equal(attributesJoin.get("longValueHashLowerCase"), JpaHashUtils.hashForAttributeValueLowerCase(value));
+                    } else if (exact) {
+                        valuePredicate = builder.equal(builder.lower(attributesJoin.get("value")), value.toLowerCase());
+                    } else {
+                        valuePredicate = builder.like(builder.lower(attributesJoin.get("value")), "%" + value.toLowerCase() + "%");
+                    }
+                    attributePredicates.add(builder.and(builder.equal(attributesJoin.get("name"), key), valuePredicate));
+            }
+        }
+
+        if (!attributePredicates.isEmpty()) {
+            predicates.add(builder.and(attributePredicates.toArray(Predicate[]::new)));
+        }
+
+        return predicates;
+    }
+
+    private Predicate[] searchPredicates(String value, Root<UserEntity> root, CriteriaBuilder builder) {
+        value = value.toLowerCase();
+        List<Predicate> orPredicates = new ArrayList<>();
+
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            // exact search
+            value = value.substring(1, value.length() - 1);
+            orPredicates.add(builder.equal(root.get(UserModel.USERNAME), value));
+            orPredicates.add(builder.equal(root.get(UserModel.EMAIL), value));
+            orPredicates.add(builder.equal(builder.lower(root.get(UserModel.FIRST_NAME)), value));
+            orPredicates.add(builder.equal(builder.lower(root.get(UserModel.LAST_NAME)), value));
+        } else {
+            value = value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            value = value.replace("*", "%");
+            // prefix search, unless the value ends with a wildcard already
+            if (value.isEmpty() || value.charAt(value.length() - 1) != '%') {
+                value += "%";
+            }
+            orPredicates.add(builder.like(root.get(UserModel.USERNAME), value, '\\'));
+            orPredicates.add(builder.like(root.get(UserModel.EMAIL), value, '\\'));
+            orPredicates.add(builder.like(builder.lower(root.get(UserModel.FIRST_NAME)), value, '\\'));
+            orPredicates.add(builder.like(builder.lower(root.get(UserModel.LAST_NAME)), value, '\\'));
+        }
+
+        return orPredicates.toArray(Predicate[]::new);
+    }
+}
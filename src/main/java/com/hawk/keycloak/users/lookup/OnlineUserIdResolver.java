@@ -1,22 +1,20 @@
 package com.hawk.keycloak.users.lookup;
 
-import com.hawk.keycloak.users.model.ClientIdSessionType;
+import com.hawk.keycloak.users.presence.OnlineUserIndex;
+import com.hawk.keycloak.users.presence.RealmPresence;
+import com.hawk.keycloak.users.presence.SessionScanner;
 import lombok.RequiredArgsConstructor;
-import org.keycloak.models.ClientModel;
-import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionProvider;
 
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
-import static com.hawk.keycloak.users.model.ClientIdSessionType.SessionType.REGULAR;
-
 @RequiredArgsConstructor
 public class OnlineUserIdResolver {
     final private UserSessionProvider sessionProvider;
     final private RealmModel realm;
+    final private OnlineUserIndex onlineUserIndex;
 
     /**
      * Find a list of user ids that currently have at least one active session
@@ -30,39 +28,42 @@ public class OnlineUserIdResolver {
             Integer maxResults,
             String[] userIdFilter
     ) {
-
-        final Map<String, Long> clientSessionStats = sessionProvider.getActiveClientSessionStats(realm, false);
-        Stream<ClientIdSessionType> sessionIdStream = clientSessionStats.keySet().stream()
-                .map(i -> new ClientIdSessionType(i, REGULAR));
-
-        // 10 minutes
-        final int CONSIDER_OFFLINE_AFTER = 600;
-        final int considerOfflineThreshold = (int) System.currentTimeMillis() - (CONSIDER_OFFLINE_AFTER * 1000);
-
-        Stream<String> result = sessionIdStream.flatMap((clientIdSessionType) -> {
-            ClientModel clientModel = realm.getClientById(clientIdSessionType.getClientId());
-            if (clientModel == null) {
-                // client has been removed in the meantime
-                return Stream.empty();
-            }
-            return sessionProvider.getUserSessionsStream(realm, clientModel)
-                    // Only include sessions that have been accessed in the last CONSIDER_OFFLINE_AFTER minutes
-                    .filter(s -> s.getLastSessionRefresh() > considerOfflineThreshold)
-                    .map(s -> s.getUser().getId());
-        });
-
-        if(userIdFilter != null) {
-            List<String> userIdFilterList = List.of(userIdFilter);
-            result = result.filter(userIdFilterList::contains);
+        RealmPresence presence = getPresence();
+
+        if (userIdFilter != null) {
+            return Arrays.stream(userIdFilter)
+                    .filter(presence::isOnline)
+                    .distinct()
+                    .skip(firstResult)
+                    .limit(maxResults);
         }
 
-        return result.distinct().skip(firstResult).limit(maxResults);
+        return presence.getOnlineUserIds(firstResult, maxResults);
     }
-}
-
-
-
 
+    /**
+     * Find the ids of the users that currently have at least one active session, ordered by id
+     * @param afterId If not null, only ids greater than this one are returned (keyset pagination)
+     * @param maxResults The number of results to return
+     */
+    public Stream<String> getOnlineUserIdsAfter(String afterId, int maxResults) {
+        return getPresence().getOnlineUserIdsAfter(afterId).limit(maxResults);
+    }
 
+    public boolean isOnline(String userId) {
+        return getPresence().isOnline(userId);
+    }
 
+    /**
+     * Counts the users that currently have at least one active session
+     */
+    public long countOnlineUserIds() {
+        return getPresence().countOnlineUsers();
+    }
 
+    private RealmPresence getPresence() {
+        RealmPresence presence = onlineUserIndex.forRealm(realm.getId());
+        presence.syncIfNeeded(() -> SessionScanner.scan(sessionProvider, realm));
+        return presence;
+    }
+}
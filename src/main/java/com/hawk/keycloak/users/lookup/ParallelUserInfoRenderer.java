@@ -0,0 +1,131 @@
+package com.hawk.keycloak.users.lookup;
+
+import jakarta.ws.rs.ServiceUnavailableException;
+import lombok.Getter;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the userinfo claims of large batches of users in parallel.
+ * <p>
+ * The users are split into partitions and every partition is rendered by a worker with its own {@link KeycloakSession}
+ * and transaction, as sessions are not thread-safe. Only the ids are handed over, every worker loads its users itself.
+ * The workers share a node-wide pool, which caps the number of partitions rendered at the same time on the node,
+ * while a single request never uses more than "requestConcurrency" workers. The queue of the pool is bounded as well:
+ * if it is full, the request thread renders the partition itself, which slows down the requests instead of piling up work.
+ */
+public class ParallelUserInfoRenderer {
+    private final KeycloakSessionFactory sessionFactory;
+    private final ExecutorService executor;
+    private final int requestConcurrency;
+    @Getter
+    private final int minBatchSize;
+
+    public ParallelUserInfoRenderer(
+            KeycloakSessionFactory sessionFactory,
+            int nodeConcurrency,
+            int requestConcurrency,
+            int minBatchSize,
+            int queueSize
+    ) {
+        this.sessionFactory = sessionFactory;
+        this.requestConcurrency = requestConcurrency;
+        this.minBatchSize = minBatchSize;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                Math.max(1, nodeConcurrency),
+                Math.max(1, nodeConcurrency),
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "hawk-userinfo-renderer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+
+    /**
+     * Small batches are rendered faster on the request thread, than it takes to set up the worker sessions
+     */
+    public boolean isWorthRendering(int userCount) {
+        return requestConcurrency > 1 && userCount >= minBatchSize;
+    }
+
+    /**
+     * Renders the (projected) claims of the given users for the client of the given session, in parallel if it is worth it
+     * @param userInfoGenerator Provides the request and the projection, the workers render with a generator of their own
+     * @return The claims in the order of the given ids, users that no longer exist are skipped
+     */
+    public List<Map<String, Object>> render(KeycloakSession session, List<String> userIds, UserInfoGenerator userInfoGenerator) {
+        if (!isWorthRendering(userIds.size())) {
+            return renderPartition(session, userIds, userInfoGenerator);
+        }
+
+        KeycloakContext context = session.getContext();
+
+        int partitionSize = (userIds.size() + requestConcurrency - 1) / requestConcurrency;
+        List<Future<List<Map<String, Object>>>> partitions = new ArrayList<>();
+
+        for (int from = 0; from < userIds.size(); from += partitionSize) {
+            List<String> partition = userIds.subList(from, Math.min(from + partitionSize, userIds.size()));
+            partitions.add(executor.submit(() -> KeycloakModelUtils.runJobInTransactionWithResult(
+                    sessionFactory,
+                    context,
+                    workerSession -> renderPartition(workerSession, partition, userInfoGenerator),
+                    false,
+                    "hawk-userinfo-rendering"
+            )));
+        }
+
+        List<Map<String, Object>> claims = new ArrayList<>(userIds.size());
+        try {
+            for (Future<List<Map<String, Object>>> partition : partitions) {
+                claims.addAll(partition.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted while rendering the userinfo claims");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Failed to render the userinfo claims", e.getCause());
+        } finally {
+            partitions.forEach(partition -> partition.cancel(true));
+        }
+
+        return claims;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private List<Map<String, Object>> renderPartition(KeycloakSession session, List<String> userIds, UserInfoGenerator userInfoGenerator) {
+        RealmModel realm = session.getContext().getRealm();
+        UserInfoGenerator sessionUserInfoGenerator = userInfoGenerator.forSession(session);
+
+        return new BulkUserLoader(session, realm)
+                .loadByIds(userIds.toArray(String[]::new))
+                .map(user -> sessionUserInfoGenerator.getUserinfo(realm, user))
+                .toList();
+    }
+}
@@ -3,6 +3,11 @@ package com.hawk.keycloak.users.lookup;
 import com.hawk.keycloak.users.lookup.query.FindAny;
 import com.hawk.keycloak.users.lookup.query.FindByAttributes;
 import com.hawk.keycloak.users.lookup.query.FindByIds;
+import com.hawk.keycloak.users.lookup.query.FindByMembership;
+import com.hawk.keycloak.users.lookup.query.OnlineIntersectionPlanner;
+import com.hawk.keycloak.users.membership.MembershipQuery;
+import com.hawk.keycloak.users.membership.MembershipQueryFactory;
+import com.hawk.keycloak.users.presence.OnlineUserIndex;
 import com.hawk.keycloak.util.ResultWindow;
 import jakarta.ws.rs.BadRequestException;
 import lombok.RequiredArgsConstructor;
@@ -17,28 +22,31 @@ public class UserFinder {
     private final UserProvider userProvider;
     private final UserSessionProvider sessionProvider;
     private final RealmModel realm;
+    private final OnlineUserIndex onlineUserIndex;
+    private final LocalUserIdQuery localUserIdQuery;
+    private final BulkUserLoader bulkUserLoader;
+    private final MembershipQueryFactory membershipQueryFactory;
 
     public Stream<UserModel> findByFilters(
             String search,
             String attributes,
             List<String> ids,
             Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups,
             Integer firstResult,
             Integer maxResults
     ) {
         onlineOnly = onlineOnly != null ? onlineOnly : false;
+        roles = roles != null ? roles : List.of();
+        groups = groups != null ? groups : List.of();
         firstResult = ResultWindow.limitFirst(firstResult);
         maxResults = ResultWindow.limitMax(maxResults);
 
-        OnlineUserIdResolver onlineUserIdResolver = new OnlineUserIdResolver(sessionProvider, realm);
+        OnlineUserIdResolver onlineUserIdResolver = new OnlineUserIdResolver(sessionProvider, realm, onlineUserIndex);
 
         if (ids != null && !ids.isEmpty()) {
-            if(search != null){
-                throw new BadRequestException("When requesting a set of ids, you can not define an additional search parameter");
-            }
-            if(attributes != null){
-                throw new BadRequestException("When requesting a set of ids, you can not define an additional attributes parameter");
-            }
+            requireNoFiltersWithIds(search, attributes, roles, groups);
 
             return new FindByIds(
                     ids.toArray(new String[0]),
@@ -49,17 +57,21 @@ public class UserFinder {
             ).execute(this, onlineUserIdResolver);
         }
 
-        if(search != null || attributes != null) {
-            Map<String, String> attributeMap = new HashMap<>(attributes == null
-                    ? Collections.emptyMap()
-                    : SearchQueryUtils.getFields(attributes));
-
-            if (search != null) {
-                attributeMap.put(UserModel.SEARCH, search.trim());
-            }
+        if (usesMembershipIndex(toAttributeMap(search, attributes), onlineOnly, roles, groups)) {
+            return new FindByMembership(
+                    toAttributeMap(search, attributes),
+                    onlineOnly,
+                    roles,
+                    groups,
+                    realm,
+                    firstResult,
+                    maxResults
+            ).execute(this, onlineUserIdResolver);
+        }
 
+        if(search != null || attributes != null) {
             return new FindByAttributes(
-                    attributeMap,
+                    toAttributeMap(search, attributes),
                     onlineOnly,
                     realm,
                     firstResult,
@@ -75,6 +87,152 @@ public class UserFinder {
         ).execute(this, onlineUserIdResolver);
     }
 
+    /**
+     * Finds one page of the ids of the users matching the filters, for keyset pagination.
+     * The ids are ordered by id (or by the order of the requested ids) and the page starts right after the given id.
+     * Only the local user storage is searched, users of federation providers must have been imported.
+     */
+    public List<String> findIdsAfter(
+            String search,
+            String attributes,
+            List<String> ids,
+            Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups,
+            String afterId,
+            int maxResults
+    ) {
+        boolean online = onlineOnly != null && onlineOnly;
+        roles = roles != null ? roles : List.of();
+        groups = groups != null ? groups : List.of();
+
+        OnlineUserIdResolver onlineUserIdResolver = new OnlineUserIdResolver(sessionProvider, realm, onlineUserIndex);
+
+        if (ids != null && !ids.isEmpty()) {
+            requireNoFiltersWithIds(search, attributes, roles, groups);
+
+            if (afterId != null) {
+                int position = ids.indexOf(afterId);
+                if (position < 0) {
+                    throw new BadRequestException("The cursor does not match the requested ids");
+                }
+                ids = ids.subList(position + 1, ids.size());
+            }
+
+            // Like the offset based pages, ids of users that do not exist (anymore) are left out
+            return bulkUserLoader.filterExisting(ids.stream().filter(id -> !online || onlineUserIdResolver.isOnline(id)))
+                    .limit(maxResults)
+                    .toList();
+        }
+
+        Map<String, String> attributeMap = toAttributeMap(search, attributes);
+
+        if (usesMembershipIndex(attributeMap, online, roles, groups)) {
+            return createMembershipQuery(attributeMap, online, roles, groups, onlineUserIdResolver)
+                    .findIdsAfter(afterId, maxResults)
+                    .toList();
+        }
+
+        if (!online) {
+            return localUserIdQuery.findIds(attributeMap, null, afterId, maxResults);
+        }
+
+        if (attributeMap.isEmpty()) {
+            return onlineUserIdResolver.getOnlineUserIdsAfter(afterId, maxResults).toList();
+        }
+
+        return createOnlineIntersectionPlanner(attributeMap, onlineUserIdResolver)
+                .findUserIdsAfter(afterId, maxResults)
+                .toList();
+    }
+
+    /**
+     * Returns the requested ids of the existing users that pass the online filter, in the requested order.
+     * The users are not loaded, only their existence is checked, lazily.
+     */
+    public Stream<String> findExistingIds(
+            String search,
+            String attributes,
+            List<String> ids,
+            Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups
+    ) {
+        requireNoFiltersWithIds(search, attributes, roles != null ? roles : List.of(), groups != null ? groups : List.of());
+
+        if (onlineOnly == null || !onlineOnly) {
+            return bulkUserLoader.filterExisting(ids.stream());
+        }
+
+        return bulkUserLoader.filterExisting(new OnlineUserIdResolver(sessionProvider, realm, onlineUserIndex)
+                .getOnlineUserIds(0, ids.size(), ids.toArray(String[]::new)));
+    }
+
+    public long countByFilters(
+            String search,
+            String attributes,
+            Boolean onlineOnly,
+            List<String> roles,
+            List<String> groups
+    ) {
+        onlineOnly = onlineOnly != null ? onlineOnly : false;
+        roles = roles != null ? roles : List.of();
+        groups = groups != null ? groups : List.of();
+        Map<String, String> attributeMap = toAttributeMap(search, attributes);
+
+        if (usesMembershipIndex(attributeMap, onlineOnly, roles, groups)) {
+            OnlineUserIdResolver onlineUserIdResolver = new OnlineUserIdResolver(sessionProvider, realm, onlineUserIndex);
+            return createMembershipQuery(attributeMap, onlineOnly, roles, groups, onlineUserIdResolver).count();
+        }
+
+        if (!onlineOnly) {
+            return userProvider.getUsersCount(realm, withServiceAccountDefault(attributeMap));
+        }
+
+        OnlineUserIdResolver onlineUserIdResolver = new OnlineUserIdResolver(sessionProvider, realm, onlineUserIndex);
+
+        if (attributeMap.isEmpty()) {
+            return onlineUserIdResolver.countOnlineUserIds();
+        }
+
+        return createOnlineIntersectionPlanner(attributeMap, onlineUserIdResolver).countUserIds();
+    }
+
+    public OnlineIntersectionPlanner createOnlineIntersectionPlanner(
+            Map<String, String> attributes,
+            OnlineUserIdResolver onlineUserIdResolver
+    ) {
+        return new OnlineIntersectionPlanner(
+                withServiceAccountDefault(attributes),
+                realm,
+                userProvider,
+                localUserIdQuery,
+                onlineUserIdResolver
+        );
+    }
+
+    public MembershipQuery createMembershipQuery(
+            Map<String, String> attributes,
+            boolean onlineOnly,
+            List<String> roles,
+            List<String> groups,
+            OnlineUserIdResolver onlineUserIdResolver
+    ) {
+        return membershipQueryFactory.create(attributes, onlineOnly, roles, groups, onlineUserIdResolver);
+    }
+
+    /**
+     * Role and group filters can only be answered by the membership index. Online users are intersected with the
+     * attribute filters by the index, as long as all attributes are indexed, otherwise the {@link OnlineIntersectionPlanner} is used.
+     */
+    private boolean usesMembershipIndex(Map<String, String> attributes, boolean onlineOnly, List<String> roles, List<String> groups) {
+        if (!roles.isEmpty() || !groups.isEmpty()) {
+            return true;
+        }
+
+        return onlineOnly && !attributes.isEmpty() && membershipQueryFactory.isFullyIndexed(attributes);
+    }
+
     public Stream<UserModel> findByIds(
             String[] userIds,
             RealmModel realm,
@@ -82,9 +240,7 @@ public class UserFinder {
             Integer maxResults
     ) {
         return ResultWindow.limitStream(
-                Arrays.stream(userIds)
-                        .map(userId -> userProvider.getUserById(realm, userId))
-                        .filter(Objects::nonNull),
+                bulkUserLoader.loadByIds(userIds),
                 firstResult,
                 maxResults
         );
@@ -96,6 +252,40 @@ public class UserFinder {
             Integer firstResult,
             Integer maxResults
     ) {
-        return userProvider.searchForUserStream(realm, attributes, firstResult, maxResults);
+        return userProvider.searchForUserStream(realm, withServiceAccountDefault(attributes), firstResult, maxResults);
+    }
+
+    private void requireNoFiltersWithIds(String search, String attributes, List<String> roles, List<String> groups) {
+        if(search != null){
+            throw new BadRequestException("When requesting a set of ids, you can not define an additional search parameter");
+        }
+        if(attributes != null){
+            throw new BadRequestException("When requesting a set of ids, you can not define an additional attributes parameter");
+        }
+        if(!roles.isEmpty() || !groups.isEmpty()){
+            throw new BadRequestException("When requesting a set of ids, you can not define an additional roles or groups parameter");
+        }
+    }
+
+    /**
+     * Service accounts are only found when the search asks for them. The user providers only leave them out
+     * when the option is set to false explicitly, so it is always passed on to them.
+     */
+    private Map<String, String> withServiceAccountDefault(Map<String, String> attributes) {
+        Map<String, String> withDefault = new HashMap<>(attributes);
+        withDefault.putIfAbsent(UserModel.INCLUDE_SERVICE_ACCOUNT, Boolean.FALSE.toString());
+        return withDefault;
+    }
+
+    private Map<String, String> toAttributeMap(String search, String attributes) {
+        Map<String, String> attributeMap = new HashMap<>(attributes == null
+                ? Collections.emptyMap()
+                : SearchQueryUtils.getFields(attributes));
+
+        if (search != null) {
+            attributeMap.put(UserModel.SEARCH, search.trim());
+        }
+
+        return attributeMap;
     }
 }
@@ -1,64 +1,196 @@
 package com.hawk.keycloak.users.lookup;
 
+import com.hawk.keycloak.users.cache.UserInfoCache;
+import com.hawk.keycloak.users.model.ClaimProjection;
 import jakarta.ws.rs.core.UriInfo;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.keycloak.common.ClientConnection;
 import org.keycloak.models.*;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapper;
+import org.keycloak.protocol.ProtocolMapperUtils;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.protocol.oidc.mappers.UserAttributeMapper;
+import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
+import org.keycloak.protocol.oidc.mappers.UserPropertyMapper;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.services.Urls;
-import org.keycloak.services.managers.AuthenticationManager;
-import org.keycloak.services.managers.AuthenticationSessionManager;
-import org.keycloak.services.managers.UserSessionManager;
-import org.keycloak.sessions.AuthenticationSessionModel;
-import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.keycloak.services.util.DefaultClientSessionContext;
 
+import java.util.List;
 import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+/**
+ * Renders the userinfo claims of users, like the userinfo endpoint would for the requesting client.
+ * <p>
+ * Instead of running a full (authentication session based) login for every user, the client scopes
+ * and - if possible - the sorted userinfo mapper chain are resolved once and reused for all users of the request.
+ * Per user only a transient, in-memory user and client session is created, which is never written to any session store.
+ * If the (projected) mapper chain only consists of user attribute and property mappers, even that is skipped and
+ * the claims are read from the user model directly.
+ * Rendered claims are kept in the {@link UserInfoCache}, so repeated requests for the same users skip the mappers entirely.
+ */
 @RequiredArgsConstructor
 public class UserInfoGenerator {
     private final KeycloakSession session;
     private final ClientModel client;
     private final UriInfo uriInfo;
     private final ClientConnection clientConnection;
+    private final UserInfoCache userInfoCache;
+    @Getter
+    private final ClaimProjection projection;
+    private final TokenManager tokenManager = new TokenManager();
 
-    public Map<String, Object> getUserinfo(RealmModel realm, UserModel user) {
-        return sessionAware(user, realm, null, (userSession, clientSessionCtx) -> {
-            AccessToken userInfo = new AccessToken();
-            TokenManager tokenManager = new TokenManager();
-            userInfo = tokenManager.transformUserInfoAccessToken(session, userInfo, userSession, clientSessionCtx);
+    private Set<ClientScopeModel> requestedClientScopes;
+    private Boolean mappersDependOnUser;
+    private List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> sharedUserInfoMappers;
+    private List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> sharedSelectedMappers;
+
+    /**
+     * Returns a generator for the same client, that only renders the given claims
+     */
+    public UserInfoGenerator withProjection(ClaimProjection projection) {
+        return new UserInfoGenerator(session, client, uriInfo, clientConnection, userInfoCache, projection);
+    }
 
-            return tokenManager.generateUserInfoClaims(userInfo, user);
-        });
+    /**
+     * Returns a generator with the same request and projection, that renders in the given session.
+     * The client is resolved in the context of that session
+     */
+    public UserInfoGenerator forSession(KeycloakSession otherSession) {
+        return new UserInfoGenerator(otherSession, otherSession.getContext().getClient(), uriInfo, clientConnection, userInfoCache, projection);
     }
 
-    private<R> R sessionAware(UserModel user, RealmModel realm, String scopeParam, BiFunction<UserSessionModel, ClientSessionContext,R> function) {
-        AuthenticationSessionModel authSession = null;
-        AuthenticationSessionManager authSessionManager = new AuthenticationSessionManager(session);
+    public Map<String, Object> getUserinfo(RealmModel realm, UserModel user) {
+        UserInfoCache.Key cacheKey = userInfoCache.createKey(realm, client.getId(), user.getId(), projection.getKey());
+        Map<String, Object> claims = userInfoCache.get(cacheKey, user);
+
+        if (claims == null) {
+            claims = renderUserinfo(realm, user);
+            userInfoCache.put(cacheKey, user, claims);
+        }
 
-        try {
-            RootAuthenticationSessionModel rootAuthSession = authSessionManager.createAuthenticationSession(realm, false);
-            authSession = rootAuthSession.createAuthenticationSession(client);
+        return claims;
+    }
 
-            authSession.setAuthenticatedUser(user);
-            authSession.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
-            authSession.setClientNote(OIDCLoginProtocol.ISSUER, Urls.realmIssuer(uriInfo.getBaseUri(), realm.getName()));
-            authSession.setClientNote(OIDCLoginProtocol.SCOPE_PARAM, scopeParam);
+    private Map<String, Object> renderUserinfo(RealmModel realm, UserModel user) {
+        AccessToken userInfo;
 
-            UserSessionModel userSession = new UserSessionManager(session).createUserSession(authSession.getParentSession().getId(), realm, user, user.getUsername(),
+        if (canRenderFromUserModel()) {
+            userInfo = renderFromUserModel(user);
+        } else {
+            UserSessionModel userSession = session.sessions().createUserSession(KeycloakModelUtils.generateId(), realm, user, user.getUsername(),
                     clientConnection.getRemoteAddr(), "example-auth", false, null, null, UserSessionModel.SessionPersistenceState.TRANSIENT);
 
-            AuthenticationManager.setClientScopesInSession(session, authSession);
-            ClientSessionContext clientSessionCtx = TokenManager.attachAuthenticationSession(session, userSession, authSession);
+            AuthenticatedClientSessionModel clientSession = session.sessions().createClientSession(realm, client, userSession);
+            clientSession.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+            clientSession.setNote(OIDCLoginProtocol.ISSUER, Urls.realmIssuer(uriInfo.getBaseUri(), realm.getName()));
+
+            ClientSessionContext clientSessionCtx = DefaultClientSessionContext.fromClientSessionAndClientScopes(
+                    clientSession,
+                    getRequestedClientScopes(),
+                    session
+            );
+
+            userInfo = new AccessToken();
+            for (Map.Entry<ProtocolMapperModel, ProtocolMapper> mapper : selectMappers(getUserInfoMappers(clientSessionCtx))) {
+                userInfo = ((UserInfoTokenMapper) mapper.getValue())
+                        .transformUserInfoToken(userInfo, mapper.getKey(), session, userSession, clientSessionCtx);
+            }
+        }
+
+        // Requested fields that are not produced by any mapper are left out, like the userinfo endpoint would
+        return projection.apply(tokenManager.generateUserInfoClaims(userInfo, user));
+    }
+
+    private Set<ClientScopeModel> getRequestedClientScopes() {
+        if (requestedClientScopes == null) {
+            // Without a scope parameter, only the default client scopes (and the client itself) are requested
+            requestedClientScopes = TokenManager.getRequestedClientScopes(session, null, client, null)
+                    .collect(Collectors.toSet());
+        }
+        return requestedClientScopes;
+    }
+
+    private List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> getUserInfoMappers(ClientSessionContext clientSessionCtx) {
+        if (mappersDependOnUser == null) {
+            // A client scope with role scope mappings is only applied for users having one of those roles,
+            // so the mapper chain can only be shared if there is no such scope
+            mappersDependOnUser = getRequestedClientScopes().stream()
+                    .filter(scope -> !(scope instanceof ClientModel))
+                    .anyMatch(scope -> scope.getScopeMappingsStream().findAny().isPresent());
+        }
+
+        if (mappersDependOnUser) {
+            return resolveUserInfoMappers(clientSessionCtx);
+        }
+
+        if (sharedUserInfoMappers == null) {
+            sharedUserInfoMappers = resolveUserInfoMappers(clientSessionCtx);
+        }
+        return sharedUserInfoMappers;
+    }
+
+    private List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> resolveUserInfoMappers(ClientSessionContext clientSessionCtx) {
+        return ProtocolMapperUtils.getSortedProtocolMappers(session, clientSessionCtx, mapper -> mapper.getValue() instanceof UserInfoTokenMapper)
+                .toList();
+    }
+
+    /**
+     * Only the mappers that produce one of the requested claims are run
+     */
+    private List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> selectMappers(List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> mappers) {
+        if (mappers == sharedUserInfoMappers && sharedSelectedMappers != null) {
+            return sharedSelectedMappers;
+        }
 
-            return function.apply(userSession, clientSessionCtx);
+        List<Map.Entry<ProtocolMapperModel, ProtocolMapper>> selected = mappers.stream()
+                .filter(mapper -> projection.needs(mapper.getKey()))
+                .toList();
 
-        } finally {
-            if (authSession != null) {
-                authSessionManager.removeAuthenticationSession(realm, authSession, false);
+        if (mappers == sharedUserInfoMappers) {
+            sharedSelectedMappers = selected;
+        }
+        return selected;
+    }
+
+    /**
+     * Once the shared mapper chain is known, and it only reads user attributes and properties,
+     * there is no need to create any session for the remaining users
+     */
+    private boolean canRenderFromUserModel() {
+        return sharedSelectedMappers != null && sharedSelectedMappers.stream()
+                .allMatch(mapper -> mapper.getValue() instanceof UserAttributeMapper || mapper.getValue() instanceof UserPropertyMapper);
+    }
+
+    /**
+     * Does the same as {@link UserAttributeMapper} and {@link UserPropertyMapper}, without requiring a user session
+     */
+    private AccessToken renderFromUserModel(UserModel user) {
+        AccessToken userInfo = new AccessToken();
+
+        for (Map.Entry<ProtocolMapperModel, ProtocolMapper> mapper : sharedSelectedMappers) {
+            ProtocolMapperModel model = mapper.getKey();
+            String attributeName = model.getConfig().get(ProtocolMapperUtils.USER_ATTRIBUTE);
+
+            if (!OIDCAttributeMapperHelper.includeInUserInfo(model) || attributeName == null || attributeName.isBlank()) {
+                continue;
+            }
+
+            Object value = mapper.getValue() instanceof UserPropertyMapper
+                    ? ProtocolMapperUtils.getUserModelValue(user, attributeName)
+                    : KeycloakModelUtils.resolveAttribute(user, attributeName, Boolean.parseBoolean(model.getConfig().get(ProtocolMapperUtils.AGGREGATE_ATTRS)));
+
+            if (value != null) {
+                OIDCAttributeMapperHelper.mapClaim(userInfo, model, value);
             }
         }
+
+        return userInfo;
     }
 }
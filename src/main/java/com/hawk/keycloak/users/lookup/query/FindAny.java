@@ -29,6 +29,7 @@ public class FindAny {
             return Stream.empty();
         }
 
-        return finder.findByIds(userIds, realm, firstResult, maxResults);
+        // The window was already applied on the online user ids
+        return finder.findByIds(userIds, realm, 0, userIds.length);
     }
 }
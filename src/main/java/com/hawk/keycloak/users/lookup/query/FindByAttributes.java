@@ -6,10 +6,7 @@ import lombok.RequiredArgsConstructor;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 @RequiredArgsConstructor
@@ -25,42 +22,15 @@ public class FindByAttributes {
             return finder.findByAttributes(attributes, realm, firstResult, maxResults);
         }
 
-        return findOnlineUsersUntilMaxIsReached(finder, onlineUserIdResolver);
-    }
-
-    private Stream<UserModel> findOnlineUsersUntilMaxIsReached(UserFinder finder, OnlineUserIdResolver onlineUserIdResolver) {
-        List<String> onlineUserIdsList = onlineUserIdResolver
-                .getOnlineUserIds(firstResult, maxResults, null)
-                .toList();
+        String[] userIds = finder.createOnlineIntersectionPlanner(attributes, onlineUserIdResolver)
+                .findUserIds(firstResult, maxResults)
+                .toArray(String[]::new);
 
-        if (onlineUserIdsList.isEmpty()) {
+        if (userIds.length == 0) {
             return Stream.empty();
         }
 
-        List<UserModel> resultList = new ArrayList<>();
-
-        int offset = 0;
-
-        while (true) {
-            AtomicBoolean streamHasAtLeastOneElement = new AtomicBoolean(false);
-
-            finder
-                    .findByAttributes(attributes, realm, offset, maxResults)
-                    .forEach(u -> {
-                        streamHasAtLeastOneElement.set(true);
-                        if (onlineUserIdsList.contains(u.getId())) {
-                            resultList.add(u);
-                        }
-                    });
-
-            // Break if either the number of results is reached or the stream did not return any more results.
-            if (resultList.size() >= maxResults || !streamHasAtLeastOneElement.get()) {
-                break;
-            }
-
-            offset += maxResults;
-        }
-
-        return resultList.stream();
+        // The window was already applied on the intersection
+        return finder.findByIds(userIds, realm, 0, userIds.length);
     }
 }
@@ -20,7 +20,7 @@ public class FindByIds {
         String[] userIds = ids;
         if (onlineOnly) {
             userIds = onlineUserIdResolver
-                    .getOnlineUserIds(firstResult, maxResults, userIds)
+                    .getOnlineUserIds(0, userIds.length, userIds)
                     .toArray(String[]::new);
         }
 
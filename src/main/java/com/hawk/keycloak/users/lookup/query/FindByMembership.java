@@ -0,0 +1,35 @@
+package com.hawk.keycloak.users.lookup.query;
+
+import com.hawk.keycloak.users.lookup.OnlineUserIdResolver;
+import com.hawk.keycloak.users.lookup.UserFinder;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+@RequiredArgsConstructor
+public class FindByMembership {
+    final private Map<String, String> attributes;
+    final private boolean onlineOnly;
+    final private List<String> roles;
+    final private List<String> groups;
+    final private RealmModel realm;
+    final private int firstResult;
+    final private int maxResults;
+
+    public Stream<UserModel> execute(UserFinder finder, OnlineUserIdResolver onlineUserIdResolver) {
+        String[] userIds = finder.createMembershipQuery(attributes, onlineOnly, roles, groups, onlineUserIdResolver)
+                .findIds(firstResult, maxResults)
+                .toArray(String[]::new);
+
+        if (userIds.length == 0) {
+            return Stream.empty();
+        }
+
+        // The window was already applied on the members
+        return finder.findByIds(userIds, realm, 0, userIds.length);
+    }
+}
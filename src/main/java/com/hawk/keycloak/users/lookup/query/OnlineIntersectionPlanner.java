@@ -0,0 +1,118 @@
+package com.hawk.keycloak.users.lookup.query;
+
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
+import com.hawk.keycloak.users.lookup.OnlineUserIdResolver;
+import com.hawk.keycloak.util.ChunkedStream;
+import com.hawk.keycloak.util.KeysetStream;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Intersects the online users with a set of search filters.
+ * The cardinality of both sides is estimated first, then the smaller side drives the iteration,
+ * while the other side is only probed: the online index by a lookup, the database by id-restricted batch queries.
+ * Both plans produce the ids in the same order (by id), so pagination is stable, regardless of the chosen plan.
+ * <p>
+ * Both of them only search the local database. If the realm has user federation providers (e.g. LDAP),
+ * users that were not imported would be missed, so the search goes through the user provider instead
+ * and its result is filtered by the online index.
+ */
+@RequiredArgsConstructor
+public class OnlineIntersectionPlanner {
+    private final Map<String, String> attributes;
+    private final RealmModel realm;
+    private final UserProvider userProvider;
+    private final LocalUserIdQuery localUserIdQuery;
+    private final OnlineUserIdResolver onlineUserIdResolver;
+
+    public enum Plan {
+        DRIVE_BY_ONLINE_USERS,
+        DRIVE_BY_ATTRIBUTES,
+        FILTER_PROVIDER_SEARCH
+    }
+
+    public Plan plan() {
+        if (hasUserStorageProviders()) {
+            return Plan.FILTER_PROVIDER_SEARCH;
+        }
+
+        long onlineCardinality = onlineUserIdResolver.countOnlineUserIds();
+        long attributeCardinality = userProvider.getUsersCount(realm, attributes);
+
+        return onlineCardinality <= attributeCardinality
+                ? Plan.DRIVE_BY_ONLINE_USERS
+                : Plan.DRIVE_BY_ATTRIBUTES;
+    }
+
+    /**
+     * Returns a window of the ids of all online users that match the filters, ordered by id.
+     * The window is applied after the intersection
+     */
+    public Stream<String> findUserIds(int firstResult, int maxResults) {
+        return findUserIds(plan(), null).skip(firstResult).limit(maxResults);
+    }
+
+    /**
+     * Returns the ids of the online users that match the filters and are greater than the given id, ordered by id
+     */
+    public Stream<String> findUserIdsAfter(String afterId, int maxResults) {
+        return findUserIds(plan(), afterId).limit(maxResults);
+    }
+
+    public long countUserIds() {
+        Plan plan = plan();
+
+        if (plan == Plan.DRIVE_BY_ONLINE_USERS) {
+            return onlineUserIdChunks(null)
+                    .mapToLong(chunk -> localUserIdQuery.count(attributes, chunk))
+                    .sum();
+        }
+
+        return findUserIds(plan, null).count();
+    }
+
+    private Stream<String> findUserIds(Plan plan, String afterId) {
+        if (plan == Plan.FILTER_PROVIDER_SEARCH) {
+            // The providers do not order by id, so all matches have to be collected and sorted
+            return userProvider.searchForUserStream(realm, attributes)
+                    .map(UserModel::getId)
+                    .filter(id -> afterId == null || id.compareTo(afterId) > 0)
+                    .filter(onlineUserIdResolver::isOnline)
+                    .sorted();
+        }
+
+        if (plan == Plan.DRIVE_BY_ONLINE_USERS) {
+            return onlineUserIdChunks(afterId)
+                    .flatMap(chunk -> localUserIdQuery.findIds(attributes, chunk, null, chunk.size()).stream());
+        }
+
+        return KeysetStream.of(
+                        afterId,
+                        LocalUserIdQuery.MAX_IDS_PER_QUERY,
+                        (after, max) -> localUserIdQuery.findIds(attributes, null, after, max),
+                        id -> id
+                )
+                .filter(onlineUserIdResolver::isOnline);
+    }
+
+    private boolean hasUserStorageProviders() {
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                .map(UserStorageProviderModel::new)
+                .anyMatch(UserStorageProviderModel::isEnabled);
+    }
+
+    private Stream<List<String>> onlineUserIdChunks(String afterId) {
+        return ChunkedStream.chunk(
+                onlineUserIdResolver.getOnlineUserIdsAfter(afterId, Integer.MAX_VALUE),
+                LocalUserIdQuery.MAX_IDS_PER_QUERY
+        );
+    }
+}
@@ -0,0 +1,93 @@
+package com.hawk.keycloak.users.membership;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import com.hawk.keycloak.users.changes.UserChangeJournal;
+import com.hawk.keycloak.users.model.UserChanges;
+import jakarta.persistence.EntityManager;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide index of the user memberships of every realm, see {@link RealmMembershipIndex}.
+ * <p>
+ * The index of a realm is versioned by the "membership version" of the realm (see {@link RealmVersions}), which the
+ * {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} updates whenever users, their role mappings or group
+ * memberships are changed. Because the version is shared by all nodes, a change seen by one node makes all nodes update
+ * the index of the realm on its next use. The changed users are taken from the {@link UserChangeJournal} and only their
+ * current state is applied to the index. The index is only loaded completely, if the journal can not tell which users
+ * changed (e.g. a role or group was deleted). Users can also be changed without any event (e.g. imported by a federation
+ * provider), so an index is reloaded after the configured maximum age as well.
+ * <p>
+ * Only one request per realm and node updates the index, concurrent requests wait for it and use its result.
+ */
+public class MembershipIndex {
+    private final Map<String, RealmMembershipIndex> realms = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final Set<String> indexedAttributes;
+    private final int maxAge;
+    private final UserChangeJournal userChangeJournal;
+
+    public MembershipIndex(Set<String> indexedAttributes, int maxAge, UserChangeJournal userChangeJournal) {
+        this.indexedAttributes = indexedAttributes;
+        this.maxAge = maxAge;
+        this.userChangeJournal = userChangeJournal;
+    }
+
+    public RealmMembershipIndex forRealm(EntityManager em, RealmModel realm) {
+        String version = Objects.requireNonNullElse(RealmVersions.get(realm, RealmVersions.Version.MEMBERSHIP), "");
+
+        RealmMembershipIndex index = realms.get(realm.getId());
+        if (isCurrent(index, version)) {
+            return index;
+        }
+
+        synchronized (locks.computeIfAbsent(realm.getId(), realmId -> new Object())) {
+            RealmMembershipIndex current = realms.get(realm.getId());
+            // Updated by another request in the meantime
+            if (isCurrent(current, version) || (current != index && !isExpired(current))) {
+                return current;
+            }
+
+            current = update(em, realm, current, version);
+            realms.put(realm.getId(), current);
+            return current;
+        }
+    }
+
+    private RealmMembershipIndex update(EntityManager em, RealmModel realm, RealmMembershipIndex index, String version) {
+        // Read before anything else, the changes up to it are part of the index then
+        long journalVersion = parseVersion(RealmVersions.get(realm, RealmVersions.Version.CACHE_BUSTER));
+
+        if (index != null && !isExpired(index) && journalVersion >= 0) {
+            UserChanges changes = userChangeJournal.forRealm(em, realm.getId())
+                    .getChangesSince(index.getJournalVersion(), String.valueOf(journalVersion));
+
+            if (!changes.isFullResyncRequired()) {
+                return index.withChangedUsers(em, changes.getUserIds(), version, journalVersion);
+            }
+        }
+
+        return RealmMembershipIndex.load(em, realm.getId(), version, journalVersion, indexedAttributes);
+    }
+
+    private boolean isCurrent(RealmMembershipIndex index, String version) {
+        return index != null && index.getVersion().equals(version) && !isExpired(index);
+    }
+
+    private boolean isExpired(RealmMembershipIndex index) {
+        return index == null || index.getLoadedAt() < Time.currentTime() - maxAge;
+    }
+
+    private long parseVersion(String version) {
+        try {
+            return version != null ? Long.parseLong(version) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
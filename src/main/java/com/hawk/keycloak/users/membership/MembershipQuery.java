@@ -0,0 +1,76 @@
+package com.hawk.keycloak.users.membership;
+
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
+import com.hawk.keycloak.util.ChunkedStream;
+import lombok.Getter;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The users matching a combination of filters, evaluated as set operations on a {@link RealmMembershipIndex}.
+ * Search filters that are not covered by the index (e.g. a free text search) are kept as remaining attributes, and are
+ * applied by probing the database with the candidates of the set, in id-restricted batches.
+ */
+public class MembershipQuery {
+    private final RealmMembershipIndex index;
+    private final LocalUserIdQuery localUserIdQuery;
+    private final OrdinalSet members;
+    @Getter
+    private final Map<String, String> remainingAttributes;
+
+    MembershipQuery(RealmMembershipIndex index, LocalUserIdQuery localUserIdQuery, OrdinalSet members, Map<String, String> remainingAttributes) {
+        this.index = index;
+        this.localUserIdQuery = localUserIdQuery;
+        this.members = members;
+        this.remainingAttributes = remainingAttributes;
+    }
+
+    public long count() {
+        if (!hasRemainingAttributes()) {
+            return members.size();
+        }
+
+        return ChunkedStream.chunk(candidates(0), LocalUserIdQuery.MAX_IDS_PER_QUERY)
+                .mapToLong(chunk -> localUserIdQuery.count(remainingAttributes, chunk))
+                .sum();
+    }
+
+    /**
+     * Returns a window of the matching user ids, ordered by id
+     */
+    public Stream<String> findIds(int firstResult, int maxResults) {
+        if (!hasRemainingAttributes()) {
+            return candidates(members.get(firstResult)).limit(maxResults);
+        }
+
+        return filterRemaining(candidates(0)).skip(firstResult).limit(maxResults);
+    }
+
+    /**
+     * Returns the matching user ids that are greater than the given id, ordered by id
+     */
+    public Stream<String> findIdsAfter(String afterId, int maxResults) {
+        Stream<String> candidates = candidates(afterId != null ? index.ordinalAfter(afterId) : 0);
+        return (hasRemainingAttributes() ? filterRemaining(candidates) : candidates).limit(maxResults);
+    }
+
+    private Stream<String> candidates(int fromOrdinal) {
+        if (fromOrdinal < 0) {
+            return Stream.empty();
+        }
+
+        return members.from(fromOrdinal).mapToObj(index::getUserId);
+    }
+
+    private Stream<String> filterRemaining(Stream<String> candidates) {
+        return ChunkedStream.chunk(candidates, LocalUserIdQuery.MAX_IDS_PER_QUERY)
+                .flatMap(chunk -> localUserIdQuery.findIds(remainingAttributes, chunk, null, chunk.size()).stream());
+    }
+
+    private boolean hasRemainingAttributes() {
+        return remainingAttributes.keySet().stream()
+                .anyMatch(key -> !key.equals(UserModel.EXACT) && !key.equals(UserModel.INCLUDE_SERVICE_ACCOUNT));
+    }
+}
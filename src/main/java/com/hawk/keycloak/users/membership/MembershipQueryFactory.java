@@ -0,0 +1,129 @@
+package com.hawk.keycloak.users.membership;
+
+import com.hawk.keycloak.roles.graph.RoleGraph;
+import com.hawk.keycloak.roles.graph.RoleGraphIndex;
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
+import com.hawk.keycloak.users.lookup.OnlineUserIdResolver;
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.NotFoundException;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.*;
+
+/**
+ * Translates the user filters of a request into a {@link MembershipQuery}
+ */
+@RequiredArgsConstructor
+public class MembershipQueryFactory {
+    // Filters on columns of the user itself, these are always left to the database. The options EXACT and
+    // INCLUDE_SERVICE_ACCOUNT are kept with them, so the database applies them the same way
+    private static final Set<String> USER_COLUMN_KEYS = Set.of(
+            UserModel.SEARCH,
+            UserModel.FIRST_NAME,
+            UserModel.LAST_NAME,
+            UserModel.USERNAME,
+            UserModel.EMAIL,
+            UserModel.EMAIL_VERIFIED,
+            UserModel.ENABLED,
+            UserModel.IDP_ALIAS,
+            UserModel.IDP_USER_ID,
+            UserModel.EXACT,
+            UserModel.INCLUDE_SERVICE_ACCOUNT
+    );
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final MembershipIndex membershipIndex;
+    private final RoleGraphIndex roleGraphIndex;
+    private final LocalUserIdQuery localUserIdQuery;
+
+    /**
+     * Returns true, if all the given attribute filters can be answered from the index alone
+     */
+    public boolean isFullyIndexed(Map<String, String> attributes) {
+        RealmMembershipIndex index = getIndex();
+        return attributes.keySet().stream()
+                .allMatch(key -> key.equals(UserModel.EXACT)
+                        || key.equals(UserModel.INCLUDE_SERVICE_ACCOUNT)
+                        || (!USER_COLUMN_KEYS.contains(key) && index.isIndexed(key)));
+    }
+
+    /**
+     * @param roleIds The users must hold all of these roles, directly, through composite roles or groups
+     * @param groupIds The users must be direct members of all of these groups
+     */
+    public MembershipQuery create(
+            Map<String, String> attributes,
+            boolean onlineOnly,
+            List<String> roleIds,
+            List<String> groupIds,
+            OnlineUserIdResolver onlineUserIdResolver
+    ) {
+        EntityManager em = getEntityManager();
+        RealmMembershipIndex index = getIndex();
+        OrdinalSet members = index.all();
+
+        if (onlineOnly) {
+            members = members.and(index.toOrdinals(onlineUserIdResolver.getOnlineUserIdsAfter(null, Integer.MAX_VALUE)));
+        }
+
+        for (String roleId : roleIds) {
+            members = members.and(getEffectiveRoleMembers(em, index, roleId));
+        }
+
+        for (String groupId : groupIds) {
+            if (realm.getGroupById(groupId) == null) {
+                throw new NotFoundException("Could not find group with id " + groupId);
+            }
+            members = members.and(index.getGroupMembers(em, groupId));
+        }
+
+        boolean exact = Boolean.parseBoolean(attributes.get(UserModel.EXACT));
+        Map<String, String> remainingAttributes = new HashMap<>();
+
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            if (entry.getValue() != null && !USER_COLUMN_KEYS.contains(entry.getKey()) && index.isIndexed(entry.getKey())) {
+                members = members.and(index.getAttributeMembers(em, entry.getKey(), entry.getValue(), exact));
+            } else {
+                remainingAttributes.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Applied last, when the other filters have narrowed the members down
+        if (!Boolean.parseBoolean(attributes.get(UserModel.INCLUDE_SERVICE_ACCOUNT))) {
+            members = members.andNot(index.getServiceAccounts());
+        }
+
+        return new MembershipQuery(index, localUserIdQuery, members, remainingAttributes);
+    }
+
+    private OrdinalSet getEffectiveRoleMembers(EntityManager em, RealmMembershipIndex index, String roleId) {
+        if (realm.getRoleById(roleId) == null) {
+            throw new NotFoundException("Could not find role with id " + roleId);
+        }
+
+        RoleGraph.Grants grants = roleGraphIndex.forRealm(session, realm).getGrantsOf(roleId);
+        OrdinalSet holders = OrdinalSet.EMPTY;
+
+        for (String grantingRoleId : grants.roleIds()) {
+            holders = holders.or(index.getRoleMembers(em, grantingRoleId));
+        }
+        for (String groupId : grants.groupIds()) {
+            holders = holders.or(index.getGroupMembers(em, groupId));
+        }
+
+        return holders;
+    }
+
+    private RealmMembershipIndex getIndex() {
+        return membershipIndex.forRealm(getEntityManager(), realm);
+    }
+
+    private EntityManager getEntityManager() {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
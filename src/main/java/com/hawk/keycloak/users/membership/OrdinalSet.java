@@ -0,0 +1,194 @@
+package com.hawk.keycloak.users.membership;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable set of user ordinals of a {@link RealmMembershipIndex}, kept as a sorted array.
+ * <p>
+ * Most roles, groups and attribute values are only held by a small part of the users, so a sorted array is
+ * far smaller than a bitmap over all users of the realm. The set of all users is not materialized at all.
+ * Sets are only combined with sets of the same index, so all their ordinals are below the size of that index.
+ */
+public class OrdinalSet {
+    public static final OrdinalSet EMPTY = new OrdinalSet(new int[0], 0);
+
+    // Null for the set of all ordinals below the size
+    private final int[] ordinals;
+    private final int size;
+
+    private OrdinalSet(int[] ordinals, int size) {
+        this.ordinals = ordinals;
+        this.size = size;
+    }
+
+    /**
+     * The ordinals 0 (inclusive) to size (exclusive)
+     */
+    public static OrdinalSet all(int size) {
+        return new OrdinalSet(null, size);
+    }
+
+    /**
+     * @param ordinals The ordinals in any order, duplicates are removed. The array is taken over
+     */
+    public static OrdinalSet of(int... ordinals) {
+        Arrays.sort(ordinals);
+
+        int length = 0;
+        for (int i = 0; i < ordinals.length; i++) {
+            if (length == 0 || ordinals[length - 1] != ordinals[i]) {
+                ordinals[length++] = ordinals[i];
+            }
+        }
+
+        int[] distinct = length == ordinals.length ? ordinals : Arrays.copyOf(ordinals, length);
+        return new OrdinalSet(distinct, distinct.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the n-th (0-based) ordinal of the set, or -1 if there are not enough ordinals
+     */
+    public int get(int n) {
+        if (n < 0 || n >= size) {
+            return -1;
+        }
+        return ordinals == null ? n : ordinals[n];
+    }
+
+    /**
+     * Returns the ordinals that are greater than or equal to the given one, in ascending order
+     */
+    public IntStream from(int ordinal) {
+        if (ordinals == null) {
+            return IntStream.range(Math.max(ordinal, 0), size);
+        }
+        return Arrays.stream(ordinals, positionOf(ordinal), size);
+    }
+
+    public OrdinalSet and(OrdinalSet other) {
+        if (ordinals == null) {
+            return other;
+        }
+        if (other.ordinals == null) {
+            return this;
+        }
+
+        OrdinalSet smaller = size <= other.size ? this : other;
+        OrdinalSet larger = smaller == this ? other : this;
+        int[] result = new int[smaller.size];
+        int length = 0;
+
+        if ((long) smaller.size * 16 < larger.size) {
+            // Far apart in size, searching the larger set is cheaper than walking it
+            for (int ordinal : smaller.ordinals) {
+                if (Arrays.binarySearch(larger.ordinals, ordinal) >= 0) {
+                    result[length++] = ordinal;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < smaller.size && j < larger.size) {
+                int a = smaller.ordinals[i];
+                int b = larger.ordinals[j];
+                if (a == b) {
+                    result[length++] = a;
+                    i++;
+                    j++;
+                } else if (a < b) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+
+        return new OrdinalSet(length == result.length ? result : Arrays.copyOf(result, length), length);
+    }
+
+    public OrdinalSet or(OrdinalSet other) {
+        if (ordinals == null) {
+            return this;
+        }
+        if (other.ordinals == null) {
+            return other;
+        }
+
+        int[] result = new int[size + other.size];
+        int length = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < size || j < other.size) {
+            if (j >= other.size || (i < size && ordinals[i] < other.ordinals[j])) {
+                result[length++] = ordinals[i++];
+            } else if (i >= size || other.ordinals[j] < ordinals[i]) {
+                result[length++] = other.ordinals[j++];
+            } else {
+                result[length++] = ordinals[i++];
+                j++;
+            }
+        }
+
+        return new OrdinalSet(length == result.length ? result : Arrays.copyOf(result, length), length);
+    }
+
+    /**
+     * The ordinals of this set that are not part of the other one
+     */
+    public OrdinalSet andNot(OrdinalSet other) {
+        if (other.size == 0) {
+            return this;
+        }
+        if (other.ordinals == null) {
+            return EMPTY;
+        }
+
+        int[] result = new int[size];
+        int length = 0;
+        int j = 0;
+
+        for (int i = 0; i < size; i++) {
+            int ordinal = get(i);
+            while (j < other.size && other.ordinals[j] < ordinal) {
+                j++;
+            }
+            if (j >= other.size || other.ordinals[j] != ordinal) {
+                result[length++] = ordinal;
+            }
+        }
+
+        return new OrdinalSet(length == result.length ? result : Arrays.copyOf(result, length), length);
+    }
+
+    /**
+     * Translates the ordinals to the ones of another index
+     * @param mapping The new ordinal of every old ordinal, or -1 if it was removed. Must keep the order of the ordinals
+     */
+    OrdinalSet map(int[] mapping) {
+        int[] result = new int[size];
+        int length = 0;
+
+        for (int i = 0; i < size; i++) {
+            int ordinal = mapping[get(i)];
+            if (ordinal >= 0) {
+                result[length++] = ordinal;
+            }
+        }
+
+        return new OrdinalSet(length == result.length ? result : Arrays.copyOf(result, length), length);
+    }
+
+    /**
+     * The position of the first ordinal that is greater than or equal to the given one
+     */
+    private int positionOf(int ordinal) {
+        int position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        return position >= 0 ? position : -position - 1;
+    }
+}
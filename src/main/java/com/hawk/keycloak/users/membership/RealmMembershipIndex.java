@@ -0,0 +1,357 @@
+package com.hawk.keycloak.users.membership;
+
+import com.hawk.keycloak.users.lookup.LocalUserIdQuery;
+import com.hawk.keycloak.util.ChunkedStream;
+import jakarta.persistence.EntityManager;
+import lombok.Getter;
+import org.keycloak.common.util.Time;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A dense ordinal for every (local) user of a realm, and sets of these ordinals (see {@link OrdinalSet}) for the
+ * direct role mappings, the group memberships and the values of the indexed attributes.
+ * <p>
+ * The ordinals follow the order of the user ids, so iterating a set yields the ids in the same order as the
+ * database queries of this extension. The dictionary is loaded upfront, the sets of a role, group or attribute
+ * are loaded on their first use. Service accounts are part of the dictionary, but kept apart in their own set, so
+ * they can be left out unless a search asks for them.
+ * <p>
+ * An index is never modified, changes of single users are applied to a copy (see {@link #withChangedUsers}),
+ * so requests that still use the previous index are not affected.
+ */
+public class RealmMembershipIndex {
+    @Getter
+    private final String version;
+    @Getter
+    private final long loadedAt;
+    // The cache-buster the index is complete up to, the position in the user change journal
+    @Getter
+    private final long journalVersion;
+    private final String realmId;
+    private final String[] userIds;
+    @Getter
+    private final OrdinalSet serviceAccounts;
+    private final Set<String> indexedAttributes;
+
+    private final Map<String, OrdinalSet> roleMembers;
+    private final Map<String, OrdinalSet> groupMembers;
+    // attribute name -> lower case value -> users
+    private final Map<String, Map<String, OrdinalSet>> attributeValues;
+
+    /**
+     * @param userIds The ids of all users, sorted
+     * @param serviceAccounts The ordinals of the service account users
+     */
+    RealmMembershipIndex(String version, long journalVersion, String realmId, String[] userIds, OrdinalSet serviceAccounts, Set<String> indexedAttributes) {
+        this(version, Time.currentTime(), journalVersion, realmId, userIds, serviceAccounts, indexedAttributes,
+                new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    RealmMembershipIndex(
+            String version,
+            long loadedAt,
+            long journalVersion,
+            String realmId,
+            String[] userIds,
+            OrdinalSet serviceAccounts,
+            Set<String> indexedAttributes,
+            Map<String, OrdinalSet> roleMembers,
+            Map<String, OrdinalSet> groupMembers,
+            Map<String, Map<String, OrdinalSet>> attributeValues
+    ) {
+        this.version = version;
+        this.loadedAt = loadedAt;
+        this.journalVersion = journalVersion;
+        this.realmId = realmId;
+        this.userIds = userIds;
+        this.serviceAccounts = serviceAccounts;
+        this.indexedAttributes = indexedAttributes;
+        this.roleMembers = roleMembers;
+        this.groupMembers = groupMembers;
+        this.attributeValues = attributeValues;
+    }
+
+    /**
+     * @param journalVersion The cache-buster, read before the users are loaded
+     */
+    static RealmMembershipIndex load(EntityManager em, String realmId, String version, long journalVersion, Set<String> indexedAttributes) {
+        List<Object[]> users = em.createQuery("select u.id, u.serviceAccountClientLink from UserEntity u"
+                        + " where u.realmId = :realm", Object[].class)
+                .setParameter("realm", realmId)
+                .getResultList();
+
+        users.sort(Comparator.comparing(user -> (String) user[0]));
+
+        String[] userIds = new String[users.size()];
+        IntStream.Builder serviceAccounts = IntStream.builder();
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = (String) users.get(i)[0];
+            if (users.get(i)[1] != null) {
+                serviceAccounts.add(i);
+            }
+        }
+
+        return new RealmMembershipIndex(version, journalVersion, realmId, userIds, OrdinalSet.of(serviceAccounts.build().toArray()), indexedAttributes);
+    }
+
+    /**
+     * Returns a copy of the index with the current state of the given users. Only the sets that were loaded already
+     * are updated, all others are loaded from the current state on their first use anyway. The age of the index is kept,
+     * so it is still reloaded completely after the maximum age.
+     * @param userIds The changed users, including the ones that were created or deleted
+     * @param journalVersion The cache-buster, read before the changes were looked up
+     */
+    RealmMembershipIndex withChangedUsers(EntityManager em, Collection<String> userIds, String version, long journalVersion) {
+        Map<String, ChangedUser> changedUsers = new HashMap<>();
+        Set<String> loadedAttributes = attributeValues.keySet();
+
+        ChunkedStream.chunk(new LinkedHashSet<>(userIds).stream(), LocalUserIdQuery.MAX_IDS_PER_QUERY).forEach(chunk -> {
+            em.createQuery("select u.id, u.serviceAccountClientLink from UserEntity u"
+                            + " where u.realmId = :realm and u.id in :ids", Object[].class)
+                    .setParameter("realm", realmId)
+                    .setParameter("ids", chunk)
+                    .getResultStream()
+                    .forEach(row -> changedUsers.put((String) row[0], new ChangedUser(row[1] != null)));
+
+            em.createQuery("select m.user.id, m.roleId from UserRoleMappingEntity m where m.user.id in :ids", Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultStream()
+                    .filter(row -> changedUsers.containsKey((String) row[0]))
+                    .forEach(row -> changedUsers.get((String) row[0]).roleIds().add((String) row[1]));
+
+            em.createQuery("select m.user.id, m.groupId from UserGroupMembershipEntity m where m.user.id in :ids", Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultStream()
+                    .filter(row -> changedUsers.containsKey((String) row[0]))
+                    .forEach(row -> changedUsers.get((String) row[0]).groupIds().add((String) row[1]));
+
+            if (!loadedAttributes.isEmpty()) {
+                em.createQuery("select a.user.id, a.name, a.value from UserAttributeEntity a"
+                                + " where a.user.id in :ids and a.name in :names", Object[].class)
+                        .setParameter("ids", chunk)
+                        .setParameter("names", loadedAttributes)
+                        .getResultStream()
+                        .filter(row -> row[2] != null && changedUsers.containsKey((String) row[0]))
+                        .forEach(row -> changedUsers.get((String) row[0]).attributeValues()
+                                .computeIfAbsent((String) row[1], name -> new HashSet<>())
+                                .add(((String) row[2]).toLowerCase()));
+            }
+        });
+
+        return withChangedUsers(userIds, changedUsers, version, journalVersion);
+    }
+
+    /**
+     * @param changedUsers The current state of the changed users that still exist
+     */
+    RealmMembershipIndex withChangedUsers(Collection<String> userIds, Map<String, ChangedUser> changedUsers, String version, long journalVersion) {
+        // The dictionary without the deleted users, plus the created ones, in the order of the ids again
+        String[] createdIds = changedUsers.keySet().stream()
+                .filter(userId -> Arrays.binarySearch(this.userIds, userId) < 0)
+                .sorted()
+                .toArray(String[]::new);
+        Set<String> deletedIds = userIds.stream()
+                .filter(userId -> !changedUsers.containsKey(userId) && Arrays.binarySearch(this.userIds, userId) >= 0)
+                .collect(Collectors.toSet());
+
+        String[] newUserIds = this.userIds;
+        int[] mapping = null;
+
+        if (createdIds.length > 0 || !deletedIds.isEmpty()) {
+            newUserIds = new String[this.userIds.length + createdIds.length - deletedIds.size()];
+            mapping = new int[this.userIds.length];
+            int length = 0;
+            int created = 0;
+
+            for (int ordinal = 0; ordinal < this.userIds.length; ordinal++) {
+                while (created < createdIds.length && createdIds[created].compareTo(this.userIds[ordinal]) < 0) {
+                    newUserIds[length++] = createdIds[created++];
+                }
+                if (deletedIds.contains(this.userIds[ordinal])) {
+                    mapping[ordinal] = -1;
+                } else {
+                    mapping[ordinal] = length;
+                    newUserIds[length++] = this.userIds[ordinal];
+                }
+            }
+            while (created < createdIds.length) {
+                newUserIds[length++] = createdIds[created++];
+            }
+        }
+
+        String[] dictionary = newUserIds;
+        int[] ordinalMapping = mapping;
+        Function<OrdinalSet, OrdinalSet> remap = set -> ordinalMapping == null ? set : set.map(ordinalMapping);
+        ToIntFunction<String> ordinalOf = userId -> Arrays.binarySearch(dictionary, userId);
+
+        // The changed users are removed from every set, and added again to the sets they belong to now
+        OrdinalSet changed = OrdinalSet.of(changedUsers.keySet().stream().mapToInt(ordinalOf).toArray());
+        UnaryOperator<OrdinalSet> withoutChanged = set -> remap.apply(set).andNot(changed);
+
+        Map<String, OrdinalSet> newRoleMembers = new ConcurrentHashMap<>();
+        roleMembers.forEach((roleId, members) -> newRoleMembers.put(roleId, withoutChanged.apply(members).or(
+                membersOf(changedUsers, ordinalOf, user -> user.roleIds().contains(roleId)))));
+
+        Map<String, OrdinalSet> newGroupMembers = new ConcurrentHashMap<>();
+        groupMembers.forEach((groupId, members) -> newGroupMembers.put(groupId, withoutChanged.apply(members).or(
+                membersOf(changedUsers, ordinalOf, user -> user.groupIds().contains(groupId)))));
+
+        Map<String, Map<String, OrdinalSet>> newAttributeValues = new ConcurrentHashMap<>();
+        attributeValues.forEach((attribute, values) -> {
+            Map<String, OrdinalSet> newValues = new HashMap<>();
+            values.forEach((value, members) -> newValues.put(value, withoutChanged.apply(members)));
+
+            changedUsers.forEach((userId, user) -> user.attributeValues().getOrDefault(attribute, Set.of()).forEach(value ->
+                    newValues.merge(value, OrdinalSet.of(ordinalOf.applyAsInt(userId)), OrdinalSet::or)));
+
+            newValues.values().removeIf(members -> members.size() == 0);
+            newAttributeValues.put(attribute, newValues);
+        });
+
+        return new RealmMembershipIndex(
+                version,
+                loadedAt,
+                journalVersion,
+                realmId,
+                newUserIds,
+                withoutChanged.apply(serviceAccounts).or(membersOf(changedUsers, ordinalOf, ChangedUser::serviceAccount)),
+                indexedAttributes,
+                newRoleMembers,
+                newGroupMembers,
+                newAttributeValues
+        );
+    }
+
+    public int size() {
+        return userIds.length;
+    }
+
+    public String getUserId(int ordinal) {
+        return userIds[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of the first user with an id greater than the given one
+     */
+    public int ordinalAfter(String userId) {
+        int position = Arrays.binarySearch(userIds, userId);
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    public OrdinalSet all() {
+        return OrdinalSet.all(userIds.length);
+    }
+
+    public OrdinalSet toOrdinals(Stream<String> ids) {
+        return OrdinalSet.of(ids
+                .mapToInt(id -> Arrays.binarySearch(userIds, id))
+                // Users created after the index was loaded are not known yet
+                .filter(position -> position >= 0)
+                .toArray());
+    }
+
+    public boolean isIndexed(String attribute) {
+        return indexedAttributes.contains(attribute);
+    }
+
+    /**
+     * The users that have the role mapped directly
+     */
+    public OrdinalSet getRoleMembers(EntityManager em, String roleId) {
+        return load(roleMembers, roleId, () -> toOrdinals(
+                em.createQuery("select m.user.id from UserRoleMappingEntity m where m.roleId = :role", String.class)
+                        .setParameter("role", roleId)
+                        .getResultStream()
+        ));
+    }
+
+    /**
+     * The direct members of the group
+     */
+    public OrdinalSet getGroupMembers(EntityManager em, String groupId) {
+        return load(groupMembers, groupId, () -> toOrdinals(
+                em.createQuery("select m.user.id from UserGroupMembershipEntity m where m.groupId = :group", String.class)
+                        .setParameter("group", groupId)
+                        .getResultStream()
+        ));
+    }
+
+    /**
+     * The users having a value of the attribute that matches the given one, like
+     * {@link org.keycloak.models.UserProvider#searchForUserStream} would match it
+     * @param exact If false, the value must only be contained in the attribute value
+     */
+    public OrdinalSet getAttributeMembers(EntityManager em, String attribute, String value, boolean exact) {
+        Map<String, OrdinalSet> values = load(attributeValues, attribute, () -> loadAttributeValues(em, attribute));
+        String search = value.toLowerCase();
+
+        if (exact) {
+            return values.getOrDefault(search, OrdinalSet.EMPTY);
+        }
+
+        OrdinalSet members = OrdinalSet.EMPTY;
+        for (Map.Entry<String, OrdinalSet> candidate : values.entrySet()) {
+            if (candidate.getKey().contains(search)) {
+                members = members.or(candidate.getValue());
+            }
+        }
+        return members;
+    }
+
+    private Map<String, OrdinalSet> loadAttributeValues(EntityManager em, String attribute) {
+        Map<String, IntStream.Builder> values = new HashMap<>();
+
+        em.createQuery("select a.user.id, a.value from UserAttributeEntity a where a.user.realmId = :realm and a.name = :name", Object[].class)
+                .setParameter("realm", realmId)
+                .setParameter("name", attribute)
+                .getResultStream()
+                .filter(row -> row[1] != null)
+                .forEach(row -> {
+                    int position = Arrays.binarySearch(userIds, (String) row[0]);
+                    if (position >= 0) {
+                        values.computeIfAbsent(((String) row[1]).toLowerCase(), k -> IntStream.builder()).add(position);
+                    }
+                });
+
+        Map<String, OrdinalSet> members = new HashMap<>();
+        values.forEach((value, positions) -> members.put(value, OrdinalSet.of(positions.build().toArray())));
+        return members;
+    }
+
+    private static OrdinalSet membersOf(Map<String, ChangedUser> changedUsers, ToIntFunction<String> ordinalOf, Predicate<ChangedUser> isMember) {
+        return OrdinalSet.of(changedUsers.entrySet().stream()
+                .filter(user -> isMember.test(user.getValue()))
+                .mapToInt(user -> ordinalOf.applyAsInt(user.getKey()))
+                .toArray());
+    }
+
+    private <T> T load(Map<String, T> sets, String key, Supplier<T> loader) {
+        // Not computeIfAbsent, which would block other keys of the same bin while the database is queried
+        T set = sets.get(key);
+        if (set == null) {
+            set = loader.get();
+            sets.putIfAbsent(key, set);
+        }
+        return set;
+    }
+
+    /**
+     * The current state of a changed user
+     * @param attributeValues Attribute name -> lower case values, only of the attributes whose sets were loaded
+     */
+    record ChangedUser(boolean serviceAccount, Set<String> roleIds, Set<String> groupIds, Map<String, Set<String>> attributeValues) {
+        ChangedUser(boolean serviceAccount) {
+            this(serviceAccount, new HashSet<>(), new HashSet<>(), new HashMap<>());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.hawk.keycloak.users.model;
+
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.utils.JsonUtils;
+
+import java.util.*;
+
+/**
+ * The set of claims a client requested with the "fields" parameter, e.g. "sub,preferred_username,hawk.groups".
+ * Nested claims are addressed by their path, like in the "claim.name" of a protocol mapper.
+ */
+public class ClaimProjection {
+    public static final ClaimProjection ALL = new ClaimProjection(List.of());
+
+    // Mappers that produce a fixed claim, without having a configurable claim name
+    private static final Map<String, String> FIXED_CLAIMS = Map.of(
+            "oidc-sub-mapper", "sub",
+            "sha256", "sub",
+            "oidc-full-name-mapper", "name",
+            "oidc-address-mapper", "address",
+            "oidc-allowed-origins-mapper", "allowed-origins",
+            "oidc-audience-mapper", "aud",
+            "oidc-audience-resolve-mapper", "aud",
+            "oidc-acr-mapper", "acr",
+            "oidc-amr-mapper", "amr"
+    );
+
+    private final SortedMap<String, List<String>> fields = new TreeMap<>();
+
+    private ClaimProjection(List<String> fields) {
+        fields.forEach(field -> this.fields.put(field, JsonUtils.splitClaimPath(field)));
+    }
+
+    public static ClaimProjection fromList(List<String> fields) {
+        List<String> nonBlankFields = fields == null ? List.of() : fields.stream()
+                .filter(field -> !field.isBlank() && !JsonUtils.splitClaimPath(field).isEmpty())
+                .toList();
+
+        return nonBlankFields.isEmpty() ? ALL : new ClaimProjection(nonBlankFields);
+    }
+
+    public boolean isAll() {
+        return fields.isEmpty();
+    }
+
+    /**
+     * A stable representation of the projection, e.g. to be used as part of a cache key
+     */
+    public String getKey() {
+        return String.join(",", fields.keySet());
+    }
+
+    /**
+     * Checks if the mapper may produce one of the requested claims.
+     * Mappers that don't tell which claim they produce are always considered to be needed.
+     */
+    public boolean needs(ProtocolMapperModel mapper) {
+        if (isAll()) {
+            return true;
+        }
+
+        String claimName = getClaimName(mapper);
+        return claimName == null || fields.values().stream().anyMatch(field -> overlaps(field, claimName));
+    }
+
+    /**
+     * Reduces the rendered claims to the requested ones
+     */
+    public Map<String, Object> apply(Map<String, Object> claims) {
+        if (isAll()) {
+            return claims;
+        }
+
+        Map<String, Object> projected = new HashMap<>();
+        fields.values().forEach(path -> copyPath(claims, projected, path, 0));
+        return projected;
+    }
+
+    private String getClaimName(ProtocolMapperModel mapper) {
+        String claimName = mapper.getConfig().get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+        return claimName != null ? claimName : FIXED_CLAIMS.get(mapper.getProtocolMapper());
+    }
+
+    /**
+     * Either path is a prefix of the other, a segment with a "${client_id}" placeholder matches any client
+     */
+    private boolean overlaps(List<String> field, String claimName) {
+        List<String> claim = JsonUtils.splitClaimPath(claimName);
+
+        for (int i = 0; i < Math.min(field.size(), claim.size()); i++) {
+            String segment = claim.get(i);
+            if (segment.contains("${client_id}")) {
+                continue;
+            }
+            if (!segment.equals(field.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copyPath(Map<String, Object> source, Map<String, Object> target, List<String> path, int depth) {
+        String segment = path.get(depth);
+        Object value = source.get(segment);
+
+        if (value == null) {
+            return;
+        }
+
+        if (depth == path.size() - 1) {
+            target.put(segment, value);
+            return;
+        }
+
+        if (value instanceof Map<?, ?> nestedSource) {
+            Object nestedTarget = target.computeIfAbsent(segment, key -> new HashMap<String, Object>());
+            if (nestedTarget instanceof Map<?, ?>) {
+                copyPath((Map<String, Object>) nestedSource, (Map<String, Object>) nestedTarget, path, depth + 1);
+            }
+        }
+    }
+}
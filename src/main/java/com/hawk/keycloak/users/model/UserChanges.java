@@ -0,0 +1,25 @@
+package com.hawk.keycloak.users.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+
+@RequiredArgsConstructor
+@Getter
+public class UserChanges {
+    // The cache-buster version the changes are complete up to, use it as "since" for the next request
+    private final String version;
+    // If true, the changes are not known (anymore) and all users must be fetched again
+    private final boolean fullResyncRequired;
+    private final Collection<String> userIds;
+
+    public static UserChanges changed(String version, Collection<String> userIds) {
+        return new UserChanges(version, false, userIds);
+    }
+
+    public static UserChanges fullResyncRequired(String version) {
+        return new UserChanges(version, true, List.of());
+    }
+}
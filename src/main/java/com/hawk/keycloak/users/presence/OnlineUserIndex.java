@@ -0,0 +1,63 @@
+package com.hawk.keycloak.users.presence;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide index of the users that are currently considered "online", kept up to date by
+ * the login, refresh and logout events seen by the {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider}.
+ * <p>
+ * Events are only seen by the node that handled the request, and sessions may expire without any event at all.
+ * Therefore, the index of a realm is reconciled with the session store when it is used for the first time,
+ * and afterward periodically by a background task, see {@link #resync}.
+ */
+public class OnlineUserIndex {
+    private final Map<String, RealmPresence> realms = new ConcurrentHashMap<>();
+
+    public RealmPresence forRealm(String realmId) {
+        return realms.computeIfAbsent(realmId, id -> new RealmPresence());
+    }
+
+    public void markSeen(String realmId, String userId, String sessionId, int timestamp) {
+        forRealm(realmId).markSeen(userId, sessionId, timestamp);
+    }
+
+    public void markSessionEnded(String realmId, String userId, String sessionId) {
+        RealmPresence presence = realms.get(realmId);
+        if (presence != null) {
+            presence.markSessionEnded(userId, sessionId);
+        }
+    }
+
+    public void markOffline(String realmId, String userId) {
+        RealmPresence presence = realms.get(realmId);
+        if (presence != null) {
+            presence.markOffline(userId);
+        }
+    }
+
+    /**
+     * Reconciles every realm that was used on this node with the session store
+     */
+    public void resync(KeycloakSession session) {
+        realms.forEach((realmId, presence) -> {
+            if (!presence.isSynced()) {
+                // The first reconciliation happens on first use
+                return;
+            }
+
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                realms.remove(realmId);
+                return;
+            }
+
+            int scanStartedAt = Time.currentTime();
+            presence.resync(SessionScanner.scan(session.sessions(), realm), scanStartedAt);
+        });
+    }
+}
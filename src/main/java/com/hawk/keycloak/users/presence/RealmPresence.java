@@ -0,0 +1,164 @@
+package com.hawk.keycloak.users.presence;
+
+import org.keycloak.common.util.Time;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * The online users of a single realm, sorted by user id. Every user is mapped to their sessions and the timestamp
+ * (in seconds) of the last activity that was observed for each session, so ending one session keeps a user online,
+ * as long as they have another one.
+ */
+public class RealmPresence {
+    // 10 minutes
+    public static final int CONSIDER_OFFLINE_AFTER = 600;
+
+    // Activities without a session id are tracked as a session of their own
+    private static final String UNKNOWN_SESSION = "";
+
+    // user id -> session id -> last activity; the session maps are immutable and replaced on every change
+    private final ConcurrentSkipListMap<String, Map<String, Integer>> sessions = new ConcurrentSkipListMap<>();
+    // Sessions and users that ended while a scan may have been running (id -> end), so the scan does not bring them back
+    private final Map<String, Integer> endedSessions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> endedUsers = new ConcurrentHashMap<>();
+    private volatile boolean synced = false;
+
+    public void markSeen(String userId, String sessionId, int timestamp) {
+        String key = sessionId != null ? sessionId : UNKNOWN_SESSION;
+
+        sessions.compute(userId, (id, userSessions) -> {
+            Map<String, Integer> updated = userSessions != null ? new HashMap<>(userSessions) : new HashMap<>();
+            updated.merge(key, timestamp, Math::max);
+            return Map.copyOf(updated);
+        });
+    }
+
+    /**
+     * The user stays online, if they have any other session
+     */
+    public void markSessionEnded(String userId, String sessionId) {
+        if (sessionId == null) {
+            markOffline(userId);
+            return;
+        }
+
+        endedSessions.put(sessionId, Time.currentTime());
+        sessions.computeIfPresent(userId, (id, userSessions) -> {
+            Map<String, Integer> updated = new HashMap<>(userSessions);
+            updated.remove(sessionId);
+            return updated.isEmpty() ? null : Map.copyOf(updated);
+        });
+    }
+
+    public void markOffline(String userId) {
+        endedUsers.put(userId, Time.currentTime());
+        sessions.remove(userId);
+    }
+
+    public boolean isOnline(String userId) {
+        Map<String, Integer> userSessions = sessions.get(userId);
+        return userSessions != null && isActive(userSessions, getThreshold());
+    }
+
+    /**
+     * Returns a window of the ids of all online users, ordered by their id
+     */
+    public Stream<String> getOnlineUserIds(int firstResult, int maxResults) {
+        return getOnlineUserIdsAfter(null)
+                .skip(firstResult)
+                .limit(maxResults);
+    }
+
+    /**
+     * Returns the ids of all online users that are greater than the given one (or all, if null), ordered by their id
+     */
+    public Stream<String> getOnlineUserIdsAfter(String afterId) {
+        final int threshold = getThreshold();
+
+        return (afterId != null ? sessions.tailMap(afterId, false) : sessions).entrySet().stream()
+                .filter(e -> isActive(e.getValue(), threshold))
+                .map(Map.Entry::getKey);
+    }
+
+    public long countOnlineUsers() {
+        final int threshold = getThreshold();
+        return sessions.values().stream().filter(userSessions -> isActive(userSessions, threshold)).count();
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Runs the first reconciliation with the session store, if it did not happen yet.
+     * All later ones are run in the background, see {@link OnlineUserIndex#resync}.
+     */
+    public void syncIfNeeded(Supplier<Map<String, Map<String, Integer>>> sessionScanner) {
+        if (synced) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!synced) {
+                int scanStartedAt = Time.currentTime();
+                resync(sessionScanner.get(), scanStartedAt);
+            }
+        }
+    }
+
+    /**
+     * Reconciles the index with a scan of the session store (user id -> session id -> last activity).
+     * Sessions that were updated by an event while the scan was running are kept as they are, sessions that ended
+     * while the scan was running are not brought back.
+     */
+    public void resync(Map<String, Map<String, Integer>> scanned, int scanStartedAt) {
+        scanned.forEach((userId, userSessions) -> {
+            if (endedSince(endedUsers, userId, scanStartedAt)) {
+                return;
+            }
+            userSessions.forEach((sessionId, timestamp) -> {
+                if (!endedSince(endedSessions, sessionId, scanStartedAt)) {
+                    markSeen(userId, sessionId, timestamp);
+                }
+            });
+        });
+
+        for (String userId : sessions.keySet()) {
+            Map<String, Integer> scannedSessions = scanned.getOrDefault(userId, Map.of());
+
+            sessions.computeIfPresent(userId, (id, userSessions) -> {
+                Map<String, Integer> kept = new HashMap<>();
+                userSessions.forEach((sessionId, timestamp) -> {
+                    if (scannedSessions.containsKey(sessionId) || timestamp >= scanStartedAt) {
+                        kept.put(sessionId, timestamp);
+                    }
+                });
+                return kept.isEmpty() ? null : Map.copyOf(kept);
+            });
+        }
+
+        // Everything that ended before this scan started is not part of it, nor of any later one
+        endedSessions.values().removeIf(endedAt -> endedAt < scanStartedAt);
+        endedUsers.values().removeIf(endedAt -> endedAt < scanStartedAt);
+
+        synced = true;
+    }
+
+    private boolean endedSince(Map<String, Integer> ended, String id, int since) {
+        Integer endedAt = ended.get(id);
+        return endedAt != null && endedAt >= since;
+    }
+
+    private boolean isActive(Map<String, Integer> userSessions, int threshold) {
+        return userSessions.values().stream().anyMatch(timestamp -> timestamp > threshold);
+    }
+
+    private int getThreshold() {
+        return Time.currentTime() - CONSIDER_OFFLINE_AFTER;
+    }
+}
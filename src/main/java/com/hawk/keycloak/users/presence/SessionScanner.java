@@ -0,0 +1,35 @@
+package com.hawk.keycloak.users.presence;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Walks all regular sessions of a realm and returns the last refresh timestamp per user and session.
+ * This is expensive and therefore only used to reconcile the {@link OnlineUserIndex} periodically.
+ */
+public class SessionScanner {
+    public static Map<String, Map<String, Integer>> scan(UserSessionProvider sessionProvider, RealmModel realm) {
+        final int considerOfflineThreshold = Time.currentTime() - RealmPresence.CONSIDER_OFFLINE_AFTER;
+        final Map<String, Map<String, Integer>> sessions = new HashMap<>();
+
+        sessionProvider.getActiveClientSessionStats(realm, false).keySet().forEach(clientId -> {
+            ClientModel clientModel = realm.getClientById(clientId);
+            if (clientModel == null) {
+                // client has been removed in the meantime
+                return;
+            }
+            sessionProvider.getUserSessionsStream(realm, clientModel)
+                    // Only include sessions that have been accessed in the last CONSIDER_OFFLINE_AFTER seconds
+                    .filter(s -> s.getLastSessionRefresh() > considerOfflineThreshold)
+                    .forEach(s -> sessions.computeIfAbsent(s.getUser().getId(), id -> new HashMap<>())
+                            .merge(s.getId(), s.getLastSessionRefresh(), Math::max));
+        });
+
+        return sessions;
+    }
+}
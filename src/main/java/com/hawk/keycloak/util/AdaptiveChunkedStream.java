@@ -0,0 +1,81 @@
+package com.hawk.keycloak.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class AdaptiveChunkedStream {
+    /**
+     * Lazily fetches an offset-paged source in chunks and filters every chunk as a whole, so the filter can
+     * look up whatever it needs for all elements of the chunk at once.
+     * The size of every chunk is derived from the share of elements the filter accepted so far,
+     * so a selective filter needs fewer round trips, while an unselective one does not over-fetch.
+     * @param fetcher Fetches at most "max" elements, starting at the offset "first". Fewer than "max" elements mean the source is exhausted
+     * @param filter Returns the elements of a chunk that are accepted, the filter can't be applied by the source
+     * @param wanted The number of accepted elements the consumer (probably) needs
+     */
+    public static <T> Stream<T> of(
+            BiFunction<Integer, Integer, List<T>> fetcher,
+            UnaryOperator<List<T>> filter,
+            int wanted,
+            int minChunkSize,
+            int maxChunkSize
+    ) {
+        Iterator<List<T>> chunks = new Iterator<>() {
+            private int offset = 0;
+            private long fetched = 0;
+            private long accepted = 0;
+            private int chunkSize = minChunkSize;
+            private List<T> next;
+            private boolean exhausted = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !exhausted) {
+                    int requested = chunkSize;
+                    List<T> chunk = fetcher.apply(offset, requested);
+                    // The next chunk starts after the requested window, only a page shorter than requested ends the source
+                    offset += requested;
+                    exhausted = chunk.size() < requested;
+
+                    if (!chunk.isEmpty()) {
+                        next = filter.apply(chunk);
+                        fetched += chunk.size();
+                        accepted += next.size();
+                        chunkSize = nextChunkSize();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<T> chunk = next;
+                next = null;
+                return chunk;
+            }
+
+            private int nextChunkSize() {
+                long missing = wanted - accepted;
+                if (missing <= 0) {
+                    return minChunkSize;
+                }
+                // Assume at least one accepted element, otherwise a filter without any match would never grow the chunks
+                double selectivity = (double) Math.max(accepted, 1) / fetched;
+                return (int) Math.max(minChunkSize, Math.min(maxChunkSize, Math.ceil(missing / selectivity)));
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED), false)
+                .flatMap(List::stream);
+    }
+}
@@ -0,0 +1,103 @@
+package com.hawk.keycloak.util;
+
+import com.hawk.keycloak.util.model.CacheStatistics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A simple, thread-safe LRU cache that is bounded by both the number of entries and their accumulated weight.
+ * The least recently used entries are evicted, until both limits are satisfied again.
+ */
+public class BoundedCache<K, V> {
+    private final LinkedHashMap<K, WeightedValue<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public BoundedCache(int maxEntries, long maxWeight, ToLongFunction<V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        WeightedValue<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Like {@link #get(Object)}, but without counting a hit or miss. For callers that validate the value
+     * before using it, these count the outcome themselves with {@link #recordHit()} and {@link #recordMiss()}
+     */
+    public synchronized V peek(K key) {
+        WeightedValue<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized void recordHit() {
+        hits++;
+    }
+
+    public synchronized void recordMiss() {
+        misses++;
+    }
+
+    public synchronized void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        WeightedValue<V> previous = entries.put(key, new WeightedValue<>(value, valueWeight));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += valueWeight;
+
+        Iterator<WeightedValue<V>> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void remove(K key) {
+        WeightedValue<V> previous = entries.remove(key);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+    }
+
+    public synchronized void removeIf(Predicate<K> predicate) {
+        Iterator<Map.Entry<K, WeightedValue<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, WeightedValue<V>> entry = iterator.next();
+            if (predicate.test(entry.getKey())) {
+                weight -= entry.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits, misses, evictions, entries.size(), weight);
+    }
+
+    private record WeightedValue<V>(V value, long weight) {
+    }
+}
@@ -0,0 +1,38 @@
+package com.hawk.keycloak.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class ChunkedStream {
+    /**
+     * Lazily groups the elements of a stream into lists of at most "chunkSize" elements,
+     * so they can be processed in batches (e.g. as parameters of an IN clause)
+     */
+    public static <T> Stream<List<T>> chunk(Stream<T> stream, int chunkSize) {
+        Iterator<T> source = stream.iterator();
+
+        Iterator<List<T>> chunks = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                List<T> chunk = new ArrayList<>(chunkSize);
+                while (source.hasNext() && chunk.size() < chunkSize) {
+                    chunk.add(source.next());
+                }
+                return chunk;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED), false)
+                .onClose(stream::close);
+    }
+}
@@ -0,0 +1,90 @@
+package com.hawk.keycloak.util;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.stream.Stream;
+
+/**
+ * Conditional GET support for responses that only change when the realm is modified.
+ * <p>
+ * The entity tag is derived from the cache-buster of the realm, the requesting client and the request uri (including all
+ * query parameters), so it changes whenever the {@link com.hawk.keycloak.cacheBuster.WriteEventListenerProvider} sees a write.
+ * If the client already has the current version, the request is answered with "304 Not Modified" before any work is done.
+ */
+@RequiredArgsConstructor
+public class ConditionalRequest {
+    private final KeycloakSession session;
+
+    /**
+     * Evaluates the "If-None-Match" header of the request and aborts it with "304 Not Modified" if it matches
+     * @param additionalVersions Further values the response depends on, that are not covered by the cache-buster
+     * @return The entity tag of the response or null, if the realm has no cache-buster (yet)
+     */
+    public EntityTag evaluate(String... additionalVersions) {
+        KeycloakContext context = session.getContext();
+        RealmModel realm = context.getRealm();
+
+        String cacheBuster = RealmVersions.get(realm, RealmVersions.Version.CACHE_BUSTER);
+        if (cacheBuster == null) {
+            // Without the event listener, there is no way to tell if anything changed
+            return null;
+        }
+
+        EntityTag entityTag = new EntityTag(hash(Stream.concat(
+                Stream.of(
+                        realm.getId(),
+                        context.getClient().getId(),
+                        cacheBuster,
+                        context.getUri().getRequestUri().toString(),
+                        context.getRequestHeaders().getHeaderString(HttpHeaders.ACCEPT)
+                ),
+                Stream.of(additionalVersions)
+        )));
+
+        String ifNoneMatch = context.getRequestHeaders().getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && matches(ifNoneMatch, entityTag)) {
+            throw new WebApplicationException(Response.notModified(entityTag).build());
+        }
+
+        return entityTag;
+    }
+
+    public static Response.ResponseBuilder tag(Response.ResponseBuilder response, EntityTag entityTag) {
+        return entityTag != null ? response.tag(entityTag) : response;
+    }
+
+    private boolean matches(String ifNoneMatch, EntityTag entityTag) {
+        String expected = "\"" + entityTag.getValue() + "\"";
+
+        return Stream.of(ifNoneMatch.split(","))
+                .map(String::trim)
+                // If-None-Match uses the weak comparison
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> tag.equals("*") || tag.equals(expected));
+    }
+
+    private String hash(Stream<String> values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            values.forEach(value -> {
+                digest.update((value != null ? value : "").getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            });
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.hawk.keycloak.util;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+public class KeysetStream {
+    /**
+     * Lazily fetches a key-ordered source in chunks, where every chunk seeks past the key of the last element of the previous one.
+     * Unlike offset based chunking, a deep chunk costs the same as the first one.
+     * @param fetcher Fetches at most "chunkSize" elements with a key greater than the given one (null for the first chunk)
+     * @param keyOf Extracts the sort key of an element
+     */
+    public static <T> Stream<T> of(String afterKey, int chunkSize, BiFunction<String, Integer, List<T>> fetcher, Function<T, String> keyOf) {
+        return Stream.iterate(
+                        fetcher.apply(afterKey, chunkSize),
+                        chunk -> !chunk.isEmpty(),
+                        chunk -> chunk.size() < chunkSize
+                                ? List.of()
+                                : fetcher.apply(keyOf.apply(chunk.get(chunk.size() - 1)), chunkSize)
+                )
+                .flatMap(List::stream);
+    }
+}
@@ -0,0 +1,58 @@
+package com.hawk.keycloak.util;
+
+import org.infinispan.commons.api.BasicCache;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.Spi;
+
+import java.util.function.Predicate;
+
+/**
+ * Tells which entries are held by one of the Keycloak caches of this node, without loading them.
+ * <p>
+ * Neither the caches (e.g. {@link org.keycloak.models.cache.UserCache}) nor the Infinispan connection provider are part
+ * of the public SPI, therefore the cache is resolved by name. If it can not be resolved (e.g. the cache is disabled),
+ * no entry is considered cached.
+ */
+public class LocalCacheProbe {
+    /** The cached users, keyed by their id */
+    public static final String USER_CACHE = "users";
+    /** The cached resource servers, resources, scopes, policies and tickets, keyed by their id */
+    public static final String AUTHORIZATION_CACHE = "authorization";
+
+    private static final String INFINISPAN_SPI = "connectionsInfinispan";
+
+    public static Predicate<String> forCache(KeycloakSession session, String cacheName) {
+        BasicCache<?, ?> cache = resolveCache(session, cacheName);
+
+        if (cache == null) {
+            return id -> false;
+        }
+
+        return cache::containsKey;
+    }
+
+    private static BasicCache<?, ?> resolveCache(KeycloakSession session, String cacheName) {
+        try {
+            Class<? extends Provider> providerClass = session.getKeycloakSessionFactory().getSpis().stream()
+                    .filter(spi -> INFINISPAN_SPI.equals(spi.getName()))
+                    .findFirst()
+                    .<Class<? extends Provider>>map(Spi::getProviderClass)
+                    .orElse(null);
+
+            if (providerClass == null) {
+                return null;
+            }
+
+            Provider provider = session.getProvider(providerClass);
+            if (provider == null) {
+                return null;
+            }
+
+            Object cache = providerClass.getMethod("getCache", String.class).invoke(provider, cacheName);
+            return cache instanceof BasicCache<?, ?> basicCache ? basicCache : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
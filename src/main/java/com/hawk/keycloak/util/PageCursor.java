@@ -0,0 +1,95 @@
+package com.hawk.keycloak.util;
+
+import com.hawk.keycloak.cacheBuster.RealmVersions;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * An opaque continuation token for keyset pagination.
+ * <p>
+ * It contains the sort key of the last item of the previous page, a fingerprint of the query (so it can't be used
+ * with different filters) and the cache-buster of the realm at the time the first page was requested.
+ * The next page seeks directly to the key, so it stays stable when data is changed in the meantime; the cache-buster
+ * only tells the client that something changed while it was paging.
+ */
+public record PageCursor(String version, String fingerprint, String lastKey) {
+    public static final String NEXT_CURSOR_HEADER = "X-Hawk-Next-Cursor";
+    public static final String STALE_CURSOR_HEADER = "X-Hawk-Cursor-Stale";
+
+    private static final String SEPARATOR = "|";
+
+    /**
+     * Resolves the "cursor" parameter of a request: an empty value starts a new pagination, everything else must be
+     * a cursor returned by a previous page of the same query
+     */
+    public static PageCursor resolve(String token, RealmModel realm, Object... query) {
+        String fingerprint = Integer.toHexString(Arrays.deepHashCode(query));
+
+        if (token.isBlank()) {
+            return new PageCursor(getVersion(realm), fingerprint, null);
+        }
+
+        PageCursor cursor = decode(token);
+        if (!cursor.fingerprint().equals(fingerprint)) {
+            throw new BadRequestException("The cursor was created for a different query");
+        }
+
+        return cursor;
+    }
+
+    public PageCursor next(String lastKey) {
+        return new PageCursor(version, fingerprint, lastKey);
+    }
+
+    public boolean isStale(RealmModel realm) {
+        return !version.equals(getVersion(realm));
+    }
+
+    /**
+     * Adds the cursor headers to the response of a page that was requested with this cursor
+     * @param page The sort keys of the items of the page
+     * @param maxResults The requested page size, a smaller page means there is no next page
+     */
+    public Response.ResponseBuilder addHeaders(Response.ResponseBuilder response, List<String> page, int maxResults, RealmModel realm) {
+        if (!page.isEmpty() && page.size() >= maxResults) {
+            response.header(NEXT_CURSOR_HEADER, next(page.get(page.size() - 1)).encode());
+        }
+
+        if (isStale(realm)) {
+            response.header(STALE_CURSOR_HEADER, "true");
+        }
+
+        return response;
+    }
+
+    public String encode() {
+        String value = version + SEPARATOR + fingerprint + SEPARATOR + (lastKey != null ? lastKey : "");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static PageCursor decode(String token) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8).split("\\|", 3);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+
+        if (parts.length != 3) {
+            throw new BadRequestException("Invalid cursor");
+        }
+
+        return new PageCursor(parts[0], parts[1], parts[2].isEmpty() ? null : parts[2]);
+    }
+
+    private static String getVersion(RealmModel realm) {
+        String version = RealmVersions.get(realm, RealmVersions.Version.CACHE_BUSTER);
+        return version != null ? version : "";
+    }
+}
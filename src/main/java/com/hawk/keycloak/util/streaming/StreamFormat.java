@@ -0,0 +1,35 @@
+package com.hawk.keycloak.util.streaming;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+
+public enum StreamFormat {
+    JSON(MediaType.APPLICATION_JSON),
+    NDJSON("application/x-ndjson");
+
+    private final String mediaType;
+
+    StreamFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * NDJSON is only used if the client explicitly prefers it, everything else gets a regular JSON array
+     */
+    public static StreamFormat fromHeaders(HttpHeaders headers) {
+        if (headers == null) {
+            return JSON;
+        }
+
+        return headers.getAcceptableMediaTypes().stream()
+                .filter(type -> !type.isWildcardType())
+                .findFirst()
+                .filter(type -> type.isCompatible(MediaType.valueOf(NDJSON.mediaType)))
+                .map(type -> NDJSON)
+                .orElse(JSON);
+    }
+}
@@ -0,0 +1,138 @@
+package com.hawk.keycloak.util.streaming;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes items directly to the response, as JSON array or as newline delimited JSON, instead of letting the JAX-RS
+ * serializer buffer the whole entity.
+ * <p>
+ * The response is written after the resource method returned, when the session of the request might already be closed.
+ * Therefore, the resource method only resolves the keys (e.g. the ids) of the items, and the items are loaded and rendered
+ * while the response is written, in a session and transaction owned by the output. They are rendered in chunks, every
+ * chunk is flushed right away and can be collected afterward. As the status is sent with the first chunk, an error while
+ * rendering a later chunk aborts the response, which clients notice as truncated output.
+ */
+public class StreamingJsonResponse {
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    private static final ObjectWriter writer = JsonSerialization.mapper.writer()
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Writes the strings as they are, without going through the object mapper
+     */
+    public static Response.ResponseBuilder okStrings(List<String> items, StreamFormat format) {
+        StreamingOutput output = outputStream -> write(outputStream, format, generator -> {
+            for (String item : items) {
+                generator.writeString(item);
+                endItem(generator, format);
+            }
+        });
+
+        return Response.ok(output, format.getMediaType());
+    }
+
+    /**
+     * Renders the items of the given keys while the response is written
+     * @param session The session of the request, the realm and client of its context are carried over to the session of the output
+     * @param chunkSize The number of keys that are rendered at once, before the output is flushed
+     */
+    public static <K> Response.ResponseBuilder render(
+            KeycloakSession session,
+            List<K> keys,
+            int chunkSize,
+            ChunkRenderer<K> renderer,
+            StreamFormat format
+    ) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = session.getContext().getRealm().getId();
+        ClientModel client = session.getContext().getClient();
+        String clientId = client != null ? client.getId() : null;
+
+        StreamingOutput output = outputStream -> write(outputStream, format, generator -> {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, outputSession -> {
+                    RealmModel realm = outputSession.realms().getRealm(realmId);
+                    outputSession.getContext().setRealm(realm);
+                    if (clientId != null) {
+                        outputSession.getContext().setClient(realm.getClientById(clientId));
+                    }
+
+                    Function<List<K>, List<?>> chunkRenderer = renderer.inSession(outputSession);
+                    for (int from = 0; from < keys.size(); from += chunkSize) {
+                        writeChunk(generator, format, chunkRenderer.apply(keys.subList(from, Math.min(from + chunkSize, keys.size()))));
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+
+        return Response.ok(output, format.getMediaType());
+    }
+
+    private static void writeChunk(JsonGenerator generator, StreamFormat format, List<?> items) {
+        try {
+            for (Object item : items) {
+                writer.writeValue(generator, item);
+                endItem(generator, format);
+            }
+            generator.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(OutputStream outputStream, StreamFormat format, ItemsWriter itemsWriter) throws IOException {
+        try (JsonGenerator generator = writer.createGenerator(outputStream)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+
+            if (format == StreamFormat.JSON) {
+                generator.writeStartArray();
+            }
+
+            itemsWriter.write(generator);
+
+            if (format == StreamFormat.JSON) {
+                generator.writeEndArray();
+            }
+        }
+    }
+
+    private static void endItem(JsonGenerator generator, StreamFormat format) throws IOException {
+        if (format == StreamFormat.NDJSON) {
+            generator.writeRaw('\n');
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkRenderer<K> {
+        /**
+         * Called once with the session of the output
+         * @return Renders the items of a chunk of keys, keys of items that no longer exist are skipped
+         */
+        Function<List<K>, List<?>> inSession(KeycloakSession session);
+    }
+
+    @FunctionalInterface
+    private interface ItemsWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+}
@@ -0,0 +1,52 @@
+package com.hawk.keycloak.resources.shares;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResourceServerSharesTest {
+    @Test
+    public void replacesTheSharesOfTheChangedResources() {
+        ResourceServerShares shares = new ResourceServerShares("1/", 1L);
+        shares.replace(List.of(), List.of(
+                ticket("r1", "owner", "alice"),
+                ticket("r1", "owner", "bob"),
+                ticket("r2", "owner", "alice")
+        ), "1/", 1L);
+
+        // r1 is no longer shared with bob, r2 no longer at all, r3 is new
+        shares.replace(List.of("r1", "r2", "r3"), List.of(
+                ticket("r1", "owner", "alice"),
+                ticket("r3", "other", "bob")
+        ), "2/", 2L);
+
+        assertEquals(List.of("r1"), shares.getSharedWith("alice", null, null));
+        assertEquals(List.of("r3"), shares.getSharedWith("bob", null, null));
+        assertEquals(List.of("r1"), shares.getSharedBy("owner", null, null));
+        assertEquals(List.of("r3"), shares.getSharedBy("other", null, null));
+        assertEquals("2/", shares.getVersion());
+        assertEquals(2L, shares.getJournalVersion());
+    }
+
+    @Test
+    public void appliesOnlyChangesOfTheCurrentVersion() {
+        ResourceServerShares shares = new ResourceServerShares("1/", 1L);
+
+        shares.apply("0/", "2/", 2L, List.of(new ShareChange("r1", "owner", "alice", true)));
+        assertEquals(List.of(), shares.getSharedWith("alice", null, null));
+        assertEquals("1/", shares.getVersion());
+
+        shares.apply("1/", "2/", 2L, List.of(new ShareChange("r1", "owner", "alice", true)));
+        assertEquals(List.of("r1"), shares.getSharedWith("alice", null, null));
+        assertEquals(2L, shares.getJournalVersion());
+
+        shares.apply("2/", "3/", 3L, List.of(new ShareChange("r1", "owner", "alice", false)));
+        assertEquals(List.of(), shares.getSharedBy("owner", null, null));
+    }
+
+    private Object[] ticket(String resourceId, String ownerId, String requesterId) {
+        return new Object[]{resourceId, ownerId, requesterId};
+    }
+}
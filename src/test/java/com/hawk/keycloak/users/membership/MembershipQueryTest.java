@@ -0,0 +1,57 @@
+package com.hawk.keycloak.users.membership;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MembershipQueryTest {
+    private final RealmMembershipIndex index = new RealmMembershipIndex(
+            "1", 1L, "realm", new String[]{"a", "b", "c", "d", "e", "f"}, OrdinalSet.EMPTY, Set.of()
+    );
+
+    @Test
+    public void countsTheMembers() {
+        assertEquals(6, query(index.all()).count());
+        assertEquals(2, query(index.toOrdinals(List.of("b", "e").stream())).count());
+    }
+
+    @Test
+    public void findsAWindowOfTheMembers() {
+        MembershipQuery query = query(index.toOrdinals(List.of("a", "c", "d", "f").stream()));
+
+        assertEquals(List.of("a", "c"), query.findIds(0, 2).toList());
+        assertEquals(List.of("d", "f"), query.findIds(2, 5).toList());
+        assertEquals(List.of(), query.findIds(4, 2).toList());
+    }
+
+    @Test
+    public void findsTheMembersAfterACursor() {
+        MembershipQuery query = query(index.toOrdinals(List.of("a", "c", "d", "f").stream()));
+
+        assertEquals(List.of("a", "c"), query.findIdsAfter(null, 2).toList());
+        assertEquals(List.of("d", "f"), query.findIdsAfter("c", 5).toList());
+        // The cursor does not have to be a member itself
+        assertEquals(List.of("d"), query.findIdsAfter("cc", 1).toList());
+        assertEquals(List.of(), query.findIdsAfter("f", 5).toList());
+    }
+
+    @Test
+    public void combinesFilters() {
+        OrdinalSet role = index.toOrdinals(List.of("a", "b", "e").stream());
+        OrdinalSet group = index.toOrdinals(List.of("c", "e").stream());
+        OrdinalSet online = index.toOrdinals(List.of("b", "c", "e", "unknown").stream());
+
+        assertEquals(List.of("e"), query(index.all().and(role).and(group)).findIds(0, 10).toList());
+        assertEquals(List.of("a", "b", "c", "e"), query(role.or(group)).findIds(0, 10).toList());
+        assertEquals(List.of("b", "c", "e"), query(online.and(role.or(group))).findIdsAfter("a", 10).toList());
+    }
+
+    private MembershipQuery query(OrdinalSet members) {
+        // Without remaining attributes the database is never queried
+        return new MembershipQuery(index, null, members, Map.of());
+    }
+}
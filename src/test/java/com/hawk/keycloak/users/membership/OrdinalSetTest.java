@@ -0,0 +1,99 @@
+package com.hawk.keycloak.users.membership;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OrdinalSetTest {
+    @Test
+    public void ofSortsAndRemovesDuplicates() {
+        OrdinalSet set = OrdinalSet.of(7, 3, 3, 9, 0, 7);
+
+        assertEquals(4, set.size());
+        assertArrayEquals(new int[]{0, 3, 7, 9}, set.from(0).toArray());
+    }
+
+    @Test
+    public void getReturnsTheNthOrdinal() {
+        OrdinalSet set = OrdinalSet.of(2, 64, 65, 1000);
+
+        assertEquals(2, set.get(0));
+        assertEquals(64, set.get(1));
+        assertEquals(1000, set.get(3));
+        assertEquals(-1, set.get(4));
+        assertEquals(-1, set.get(-1));
+        assertEquals(-1, OrdinalSet.EMPTY.get(0));
+    }
+
+    @Test
+    public void getOfAllIsTheOrdinalItself() {
+        OrdinalSet all = OrdinalSet.all(5);
+
+        assertEquals(0, all.get(0));
+        assertEquals(4, all.get(4));
+        assertEquals(-1, all.get(5));
+    }
+
+    @Test
+    public void fromStartsAtTheGivenOrdinal() {
+        OrdinalSet set = OrdinalSet.of(1, 4, 9);
+
+        assertArrayEquals(new int[]{4, 9}, set.from(4).toArray());
+        assertArrayEquals(new int[]{4, 9}, set.from(2).toArray());
+        assertArrayEquals(new int[]{}, set.from(10).toArray());
+        assertArrayEquals(new int[]{3, 4}, OrdinalSet.all(5).from(3).toArray());
+    }
+
+    @Test
+    public void andIntersects() {
+        OrdinalSet a = OrdinalSet.of(1, 3, 5, 7, 9);
+        OrdinalSet b = OrdinalSet.of(3, 4, 5, 10);
+
+        assertArrayEquals(new int[]{3, 5}, a.and(b).from(0).toArray());
+        assertArrayEquals(new int[]{3, 5}, b.and(a).from(0).toArray());
+        assertEquals(0, a.and(OrdinalSet.EMPTY).size());
+    }
+
+    @Test
+    public void andSearchesAMuchLargerSet() {
+        int[] even = new int[1000];
+        for (int i = 0; i < even.length; i++) {
+            even[i] = i * 2;
+        }
+        OrdinalSet large = OrdinalSet.of(even);
+        OrdinalSet small = OrdinalSet.of(1, 2, 998, 1999, 5000);
+
+        assertArrayEquals(new int[]{2, 998}, small.and(large).from(0).toArray());
+        assertArrayEquals(new int[]{2, 998}, large.and(small).from(0).toArray());
+    }
+
+    @Test
+    public void andWithAllKeepsTheOtherSet() {
+        OrdinalSet set = OrdinalSet.of(2, 4);
+
+        assertArrayEquals(new int[]{2, 4}, OrdinalSet.all(10).and(set).from(0).toArray());
+        assertArrayEquals(new int[]{2, 4}, set.and(OrdinalSet.all(10)).from(0).toArray());
+    }
+
+    @Test
+    public void orMerges() {
+        OrdinalSet a = OrdinalSet.of(1, 3, 5);
+        OrdinalSet b = OrdinalSet.of(0, 3, 6, 8);
+
+        assertArrayEquals(new int[]{0, 1, 3, 5, 6, 8}, a.or(b).from(0).toArray());
+        assertArrayEquals(new int[]{0, 1, 3, 5, 6, 8}, b.or(a).from(0).toArray());
+        assertArrayEquals(new int[]{1, 3, 5}, OrdinalSet.EMPTY.or(a).from(0).toArray());
+        assertEquals(10, a.or(OrdinalSet.all(10)).size());
+    }
+
+    @Test
+    public void andNotRemovesTheOtherSet() {
+        OrdinalSet a = OrdinalSet.of(1, 3, 5, 7);
+
+        assertArrayEquals(new int[]{1, 7}, a.andNot(OrdinalSet.of(0, 3, 5, 8)).from(0).toArray());
+        assertArrayEquals(new int[]{1, 3, 5, 7}, a.andNot(OrdinalSet.EMPTY).from(0).toArray());
+        assertArrayEquals(new int[]{0, 2, 4}, OrdinalSet.all(5).andNot(OrdinalSet.of(1, 3)).from(0).toArray());
+        assertEquals(0, a.andNot(OrdinalSet.all(10)).size());
+    }
+}
@@ -0,0 +1,102 @@
+package com.hawk.keycloak.users.membership;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class RealmMembershipIndexTest {
+    @Test
+    public void appliesCreatedAndDeletedUsers() {
+        RealmMembershipIndex index = new RealmMembershipIndex("1", 1L, "realm", new String[]{"b", "d", "f"}, OrdinalSet.EMPTY, Set.of());
+
+        RealmMembershipIndex changed = index.withChangedUsers(
+                List.of("a", "d", "e"),
+                Map.of("a", user(false, Set.of(), Set.of()), "e", user(true, Set.of(), Set.of())),
+                "2",
+                2L
+        );
+
+        assertEquals(List.of("a", "b", "e", "f"), ids(changed, changed.all()));
+        assertEquals(List.of("e"), ids(changed, changed.getServiceAccounts()));
+        assertEquals("2", changed.getVersion());
+        assertEquals(2L, changed.getJournalVersion());
+        assertEquals(index.getLoadedAt(), changed.getLoadedAt());
+        // The previous index is left as it was
+        assertEquals(List.of("b", "d", "f"), ids(index, index.all()));
+    }
+
+    @Test
+    public void updatesTheLoadedSets() {
+        // a: role and group, b: role, c: nothing
+        RealmMembershipIndex index = loaded(new String[]{"a", "b", "c"}, OrdinalSet.of(0, 1), OrdinalSet.of(0));
+
+        RealmMembershipIndex changed = index.withChangedUsers(
+                List.of("a", "b", "bb", "c"),
+                Map.of(
+                        "a", user(false, Set.of(), Set.of("group")),
+                        "bb", user(false, Set.of("role"), Set.of()),
+                        "c", user(false, Set.of("role"), Set.of("group"))
+                ),
+                "2",
+                2L
+        );
+
+        assertEquals(List.of("a", "bb", "c"), ids(changed, changed.all()));
+        assertEquals(List.of("bb", "c"), ids(changed, changed.getRoleMembers(null, "role")));
+        assertEquals(List.of("a", "c"), ids(changed, changed.getGroupMembers(null, "group")));
+    }
+
+    @Test
+    public void keepsTheUnchangedUsers() {
+        // a and c: role
+        RealmMembershipIndex index = loaded(new String[]{"a", "b", "c"}, OrdinalSet.of(0, 2), OrdinalSet.EMPTY);
+
+        RealmMembershipIndex changed = index.withChangedUsers(List.of("b"), Map.of("b", user(false, Set.of(), Set.of("group"))), "2", 2L);
+
+        assertEquals(List.of("a", "c"), ids(changed, changed.getRoleMembers(null, "role")));
+        assertEquals(List.of("b"), ids(changed, changed.getGroupMembers(null, "group")));
+    }
+
+    @Test
+    public void updatesTheLoadedAttributeValues() {
+        Map<String, Map<String, OrdinalSet>> attributeValues = new ConcurrentHashMap<>();
+        attributeValues.put("department", new HashMap<>(Map.of("sales", OrdinalSet.of(0, 1))));
+        RealmMembershipIndex index = new RealmMembershipIndex(
+                "1", 0, 1L, "realm", new String[]{"a", "b"}, OrdinalSet.EMPTY, Set.of("department"),
+                new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), attributeValues
+        );
+
+        RealmMembershipIndex changed = index.withChangedUsers(
+                List.of("a"),
+                Map.of("a", new RealmMembershipIndex.ChangedUser(false, Set.of(), Set.of(), Map.of("department", Set.of("it")))),
+                "2",
+                2L
+        );
+
+        assertEquals(List.of("b"), ids(changed, changed.getAttributeMembers(null, "department", "sales", true)));
+        assertEquals(List.of("a"), ids(changed, changed.getAttributeMembers(null, "department", "IT", true)));
+    }
+
+    /**
+     * An index with the sets of "role" and "group" loaded already, so no database is needed
+     */
+    private RealmMembershipIndex loaded(String[] userIds, OrdinalSet roleMembers, OrdinalSet groupMembers) {
+        return new RealmMembershipIndex(
+                "1", 0, 1L, "realm", userIds, OrdinalSet.EMPTY, Set.of(),
+                new ConcurrentHashMap<>(Map.of("role", roleMembers)),
+                new ConcurrentHashMap<>(Map.of("group", groupMembers)),
+                new ConcurrentHashMap<>()
+        );
+    }
+
+    private RealmMembershipIndex.ChangedUser user(boolean serviceAccount, Set<String> roleIds, Set<String> groupIds) {
+        return new RealmMembershipIndex.ChangedUser(serviceAccount, roleIds, groupIds, Map.of());
+    }
+
+    private List<String> ids(RealmMembershipIndex index, OrdinalSet members) {
+        return members.from(0).mapToObj(index::getUserId).toList();
+    }
+}